@@ -0,0 +1,16 @@
+#!/usr/bin/env bash
+
+## Builds the project and its JMH benchmarks, and runs them. Arguments are passed on to JMH, e.g.
+##   ./run-benchmarks.sh SentimentIterator -p batchSize=50
+## to run one benchmark class with one batch size, or -l to list the benchmarks.
+## Results are written as JSON to results/<commit>.json, to compare runs across changes.
+
+set -e
+cd "$(dirname "$0")/.."
+mvn -B -q install -DskipTests
+cd benchmarks
+mvn -B -q package
+
+mkdir -p results
+commit=$(git rev-parse --short HEAD 2>/dev/null || date +%Y%m%d-%H%M%S)
+java -jar target/benchmarks.jar -rf json -rff "results/$commit.json" "$@"
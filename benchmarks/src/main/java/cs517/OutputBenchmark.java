@@ -0,0 +1,90 @@
+package cs517;
+
+import org.deeplearning4j.nn.api.OptimizationAlgorithm;
+import org.deeplearning4j.nn.conf.MultiLayerConfiguration;
+import org.deeplearning4j.nn.conf.NeuralNetConfiguration;
+import org.deeplearning4j.nn.conf.Updater;
+import org.deeplearning4j.nn.conf.layers.GravesLSTM;
+import org.deeplearning4j.nn.conf.layers.RnnOutputLayer;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.deeplearning4j.nn.weights.WeightInit;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.lossfunctions.LossFunctions;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Inference with the Word2VecRNN network (two 50-unit GravesLSTMs on 100-dimensional word vectors) on
+ * masked batches: random features, reviews of between half and all of timeSteps steps, and a label mask on
+ * the last step of each review, like SentimentIterator's batches.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OutputBenchmark {
+
+    private static final int VECTOR_SIZE = 100;
+
+    @Param({"16", "50", "100"})
+    public int batchSize;
+
+    @Param({"50", "300"})
+    public int timeSteps;
+
+    private MultiLayerNetwork net;
+    private INDArray features;
+    private INDArray featuresMask;
+    private INDArray labelsMask;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        MultiLayerConfiguration conf = new NeuralNetConfiguration.Builder()
+                .optimizationAlgo(OptimizationAlgorithm.STOCHASTIC_GRADIENT_DESCENT).iterations(1)
+                .updater(Updater.RMSPROP)
+                .weightInit(WeightInit.XAVIER)
+                .seed(12345)
+                .list()
+                .layer(0, new GravesLSTM.Builder().nIn(VECTOR_SIZE).nOut(50).activation("softsign").build())
+                .layer(1, new GravesLSTM.Builder().nIn(50).nOut(50).activation("tanh").build())
+                .layer(2, new RnnOutputLayer.Builder().activation("softmax")
+                        .lossFunction(LossFunctions.LossFunction.MCXENT).nIn(50).nOut(2).build())
+                .pretrain(false).backprop(true).build();
+        net = new MultiLayerNetwork(conf);
+        net.init();
+
+        Nd4j.getRandom().setSeed(42);
+        features = Nd4j.rand(new int[]{batchSize, VECTOR_SIZE, timeSteps});
+        featuresMask = Nd4j.zeros(batchSize, timeSteps);
+        labelsMask = Nd4j.zeros(batchSize, timeSteps);
+        Random rng = new Random(7);
+        for (int i = 0; i < batchSize; i++) {
+            int length = timeSteps / 2 + rng.nextInt(timeSteps - timeSteps / 2) + 1;
+            for (int t = 0; t < length; t++) {
+                featuresMask.putScalar(new int[]{i, t}, 1.0);
+            }
+            labelsMask.putScalar(new int[]{i, length - 1}, 1.0);
+        }
+    }
+
+    @Benchmark
+    public INDArray output() {
+        return net.output(features, false, featuresMask, labelsMask);
+    }
+}
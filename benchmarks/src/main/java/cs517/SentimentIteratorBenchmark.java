@@ -0,0 +1,84 @@
+package cs517;
+
+import cs517.data.EmbeddingRegistry;
+import cs517.data.ReviewSource;
+import cs517.data.SyntheticData;
+import cs517.data.TokenIdCorpus;
+import cs517.data.WordVectorTable;
+import org.deeplearning4j.models.embeddings.wordvectors.WordVectors;
+import org.nd4j.linalg.dataset.DataSet;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Batching of tokenized reviews for the word-level network: SentimentIterator.next on the token id path
+ * Word2VecRNN uses, over 512 reviews of up to maxTokens tokens, with word vector features or with row id
+ * features for an EmbeddingInput layer. Epochs are restarted with setEpoch, which does not print padding
+ * stats like reset does.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SentimentIteratorBenchmark {
+
+    @Param({"16", "50", "100"})
+    public int batchSize;
+
+    @Param({"100", "300", "1000"})
+    public int maxTokens;
+
+    @Param({"false", "true"})
+    public boolean indexFeatures;
+
+    private File dir;
+    private WordVectors vsm;
+    private SentimentIterator iterator;
+    private int epoch;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dir = SyntheticData.tempDir("sentiment-bench");
+        File vectors = SyntheticData.wordVectors(dir, 10000, 100, 42);
+        String fingerprint = EmbeddingRegistry.getDefault().fingerprint(vectors);
+        vsm = EmbeddingRegistry.getDefault().acquire(vectors);
+        ReviewSource reviews = SyntheticData.source(512, 10000, maxTokens / 10, 10, 7);
+        File ids = new File(dir, "reviews.ids");
+        TokenIdCorpus.build(reviews, WordVectorTable.of(vsm), fingerprint, maxTokens, ids);
+
+        iterator = new SentimentIterator(TokenIdCorpus.open(ids), reviews, vsm, fingerprint, batchSize);
+        iterator.setIndexFeatures(indexFeatures);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        iterator.shutdown();
+        EmbeddingRegistry.getDefault().release(vsm);
+        SyntheticData.delete(dir);
+    }
+
+    @Benchmark
+    public DataSet next() {
+        if (!iterator.hasNext()) {
+            iterator.setEpoch(++epoch);
+        }
+        return iterator.next();
+    }
+}
@@ -0,0 +1,70 @@
+package cs517.data;
+
+import org.nd4j.linalg.dataset.DataSet;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Batching of vectorized reviews for the sentence-level network: MultiClassIterator.next over 512 reviews
+ * imported through DataSetManager, with up to maxSentences sentences each. Epochs are restarted with
+ * setEpoch, which does not print padding stats like reset does.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MultiClassIteratorBenchmark {
+
+    @Param({"16", "32", "64"})
+    public int batchSize;
+
+    @Param({"10", "40"})
+    public int maxSentences;
+
+    private File dir;
+    private MultiClassIterator iterator;
+    private int epoch;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dir = SyntheticData.tempDir("multiclass-bench");
+        File tsv = new File(dir, "reviews.tsv");
+        SyntheticData.maasFile(tsv, 512, 10000, maxSentences, 15, 7);
+
+        DataSetManager dm = new DataSetManager();
+        dm.setWordVectorsFile(SyntheticData.wordVectors(dir, 10000, 100, 42));
+        dm.importData(tsv);
+        iterator = new MultiClassIterator(dm, new ArrayList<>(dm.revIDs), batchSize);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        SyntheticData.delete(dir);
+    }
+
+    @Benchmark
+    public DataSet next() {
+        if (!iterator.hasNext()) {
+            iterator.setEpoch(++epoch);
+        }
+        return iterator.next();
+    }
+}
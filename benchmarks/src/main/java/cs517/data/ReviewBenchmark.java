@@ -0,0 +1,83 @@
+package cs517.data;
+
+import org.deeplearning4j.models.embeddings.wordvectors.WordVectors;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Ingestion of a single review: parsing a Maas TSV line into a Review, and tokenizing and vectorizing the
+ * review's text into its [sentences x vectorSize] matrix. Reviews have sentences sentences of 15 words,
+ * from a 10000 word vocabulary with 100-dimensional vectors.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReviewBenchmark {
+
+    private static final int REVIEWS = 64;
+
+    @Param({"5", "20", "75"})
+    public int sentences;
+
+    private File dir;
+    private WordVectors vsm;
+    private TokenizationService tokenizer;
+    private SentenceEmbedder embedder;
+    private String[] lines;
+    private Review[] reviews;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dir = SyntheticData.tempDir("review-bench");
+        vsm = EmbeddingRegistry.getDefault().acquire(SyntheticData.wordVectors(dir, 10000, 100, 42));
+        tokenizer = new TokenizationService();
+        embedder = new SentenceEmbedder(WordVectorTable.of(vsm));
+
+        Random rng = new Random(7);
+        lines = new String[REVIEWS];
+        reviews = new Review[REVIEWS];
+        for (int i = 0; i < REVIEWS; i++) {
+            lines[i] = SyntheticData.maasLine(rng, i, SyntheticData.text(rng, 10000, sentences, 15));
+            reviews[i] = new Review(lines[i]);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        EmbeddingRegistry.getDefault().release(vsm);
+        SyntheticData.delete(dir);
+    }
+
+    @Benchmark
+    public Review parse() {
+        return new Review(lines[next++ % REVIEWS]);
+    }
+
+    @Benchmark
+    public INDArray vectorize() {
+        Review review = reviews[next++ % REVIEWS];
+        review.vectorizeReview(tokenizer, embedder, 75, false);
+        return review.reviewVecs;
+    }
+}
@@ -0,0 +1,201 @@
+package cs517.data;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * Seeded synthetic reviews and word vectors, so the benchmarks need no downloads and measure the same
+ * inputs on every machine. Words are lowercase letter strings made from syllables, so every tokenizer in
+ * the project splits them the same way, and every word is in the vocabulary of the synthetic word vectors.
+ * Reviews of a data set have between half and all of its maximum number of sentences, so batches of them
+ * are padded like batches of real reviews.
+ */
+public final class SyntheticData {
+
+    private static final String[] SYLLABLES = {
+            "ba", "ke", "di", "lo", "mu", "na", "pe", "ri", "so", "tu",
+            "va", "we", "xi", "yo", "za", "ch", "sh", "th", "gr", "pl"
+    };
+    private static final int[] SCORES = {1, 2, 3, 4, 7, 8, 9, 10};
+
+    private SyntheticData() {
+    }
+
+    /**
+     * @param index word number
+     * @return the synthetic word of that number; distinct numbers give distinct words
+     */
+    public static String word(int index) {
+        StringBuilder sb = new StringBuilder();
+        int n = index;
+        do {
+            sb.append(SYLLABLES[n % SYLLABLES.length]);
+            n /= SYLLABLES.length;
+        } while (n > 0);
+        return sb.toString();
+    }
+
+    /**
+     * Writes word vectors of the words 0 ... vocabSize - 1 with uniform random components, in the mapped
+     * format EmbeddingRegistry loads fastest.
+     *
+     * @param dir       directory of the files
+     * @param vocabSize number of words
+     * @param layerSize vector size
+     * @param seed      seed of the components
+     * @return the mapped word vector file
+     */
+    public static File wordVectors(File dir, int vocabSize, int layerSize, long seed) throws IOException {
+        File text = new File(dir, "vectors-" + vocabSize + "x" + layerSize + ".txt");
+        File mapped = new File(dir, "vectors-" + vocabSize + "x" + layerSize + ".emb");
+        Random rng = new Random(seed);
+        try (PrintWriter out = writer(text)) {
+            for (int w = 0; w < vocabSize; w++) {
+                StringBuilder line = new StringBuilder(word(w));
+                for (int c = 0; c < layerSize; c++) {
+                    line.append(' ').append(rng.nextFloat() * 2 - 1);
+                }
+                out.println(line);
+            }
+        }
+        MappedWordVectors.convert(text, mapped);
+        text.delete();
+        return mapped;
+    }
+
+    /**
+     * @param rng           source of the words
+     * @param vocabSize     number of distinct words
+     * @param sentences     number of sentences
+     * @param sentenceWords number of words per sentence
+     * @return review text: sentences of random words, each ended by a period
+     */
+    public static String text(Random rng, int vocabSize, int sentences, int sentenceWords) {
+        StringBuilder sb = new StringBuilder();
+        for (int s = 0; s < sentences; s++) {
+            for (int w = 0; w < sentenceWords; w++) {
+                if (w > 0) {
+                    sb.append(' ');
+                }
+                sb.append(word(rng.nextInt(vocabSize)));
+            }
+            sb.append(". ");
+        }
+        return sb.toString().trim();
+    }
+
+    /**
+     * @param rng    source of the score
+     * @param number review number, the first part of the id
+     * @param text   review text
+     * @return a labeled Maas TSV line, "id\tpolarity\t"text"", with a random score
+     */
+    public static String maasLine(Random rng, int number, String text) {
+        int score = SCORES[rng.nextInt(SCORES.length)];
+        return "\"" + number + "_" + score + "\"\t" + (score > 5 ? 1 : 0) + "\t\"" + text + "\"";
+    }
+
+    /**
+     * Writes a labeled Maas TSV file, with header.
+     *
+     * @param f             target file; overwritten
+     * @param reviews       number of reviews
+     * @param vocabSize     number of distinct words
+     * @param maxSentences  maximum number of sentences per review
+     * @param sentenceWords words per sentence
+     * @param seed          seed of the words, lengths and scores
+     */
+    public static void maasFile(File f, int reviews, int vocabSize, int maxSentences, int sentenceWords, long seed)
+            throws IOException {
+        Random rng = new Random(seed);
+        try (PrintWriter out = writer(f)) {
+            out.println("id\tsentiment\treview");
+            for (int i = 0; i < reviews; i++) {
+                out.println(maasLine(rng, i, text(rng, vocabSize, sentences(rng, maxSentences), sentenceWords)));
+            }
+        }
+    }
+
+    /**
+     * @param reviews       number of reviews
+     * @param vocabSize     number of distinct words
+     * @param maxSentences  maximum number of sentences per review
+     * @param sentenceWords words per sentence
+     * @param seed          seed of the words, lengths and scores
+     * @return in-memory reviews, e.g. for SentimentIterator and TokenIdCorpus.build
+     */
+    public static ReviewSource source(int reviews, int vocabSize, int maxSentences, int sentenceWords, long seed) {
+        Random rng = new Random(seed);
+        final String[] texts = new String[reviews];
+        final int[] scores = new int[reviews];
+        for (int i = 0; i < reviews; i++) {
+            scores[i] = SCORES[rng.nextInt(SCORES.length)];
+            texts[i] = text(rng, vocabSize, sentences(rng, maxSentences), sentenceWords);
+        }
+        return new ReviewSource() {
+            @Override
+            public int size() {
+                return texts.length;
+            }
+
+            @Override
+            public String id(int index) {
+                return index + "_" + scores[index];
+            }
+
+            @Override
+            public String text(int index) {
+                return texts[index];
+            }
+
+            @Override
+            public int polarity(int index) {
+                return scores[index] > 5 ? 1 : 0;
+            }
+
+            @Override
+            public int score(int index) {
+                return scores[index];
+            }
+        };
+    }
+
+    /** @return a number of sentences between half of maxSentences and maxSentences */
+    private static int sentences(Random rng, int maxSentences) {
+        int min = Math.max(1, maxSentences / 2);
+        return min + rng.nextInt(Math.max(1, maxSentences - min + 1));
+    }
+
+    /**
+     * @return a fresh temporary directory; remove it with delete
+     */
+    public static File tempDir(String prefix) throws IOException {
+        File dir = File.createTempFile(prefix, "");
+        if (!dir.delete() || !dir.mkdir()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        return dir;
+    }
+
+    /**
+     * Deletes a directory made by tempDir and its files.
+     */
+    public static void delete(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    private static PrintWriter writer(File f) throws IOException {
+        return new PrintWriter(new OutputStreamWriter(new FileOutputStream(f), StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,441 @@
+package cs517;
+
+import org.deeplearning4j.nn.conf.MultiLayerConfiguration;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.deeplearning4j.util.ModelSerializer;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Saves a network after every epoch, so that a run that dies can resume after the last epoch it finished.
+ * A checkpoint holds the parameters and updater state (e.g. the RMSPROP caches) of the network, the epoch
+ * and the seed of the data splits and batch shuffles; since the batch samplers only depend on the seed and
+ * the epoch, setting the iterators to the next epoch picks up the data where it was left.
+ * <p>
+ * Every checkpoint also records the fingerprint of the run that saved it, i.e. of the network configuration
+ * and of the data (see fingerprint), and latest refuses to return a checkpoint of a run with another
+ * fingerprint, so a changed configuration or data set never silently resumes from stale parameters.
+ * Resuming is up to the caller, e.g. on a --resume argument; a run that starts over calls clear first, so
+ * checkpoints of an earlier run are not mixed with its own.
+ * <p>
+ * save only copies the network, which takes a few milliseconds; the copy is written to disk on a background
+ * thread, so training goes on in the meantime. Every checkpoint is written to a temporary file and renamed
+ * once complete, and its properties file is written last, so a run that dies while writing leaves the
+ * previous checkpoints intact. Only the last keep checkpoints are kept, plus, when an EarlyStopping is saved
+ * along, the checkpoint of its best epoch and those of the epochs it has not scored yet, so that a resumed
+ * run can still return the best network (see EarlyStopping.restore).
+ * <p>
+ * Usage:
+ * <p>
+ * CheckpointManager checkpoints = new CheckpointManager(new File("checkpoints"), 3,
+ *         CheckpointManager.fingerprint(conf, "batchSize=" + batchSize, registry.fingerprint(dataFile)));
+ * CheckpointManager.Checkpoint latest = resume ? checkpoints.latest() : null;
+ * if (latest != null) { latest.restoreInto(net); firstEpoch = latest.epoch() + 1; } else { checkpoints.clear(); }
+ * ...
+ * checkpoints.save(net, epoch, seed, earlyStopping);
+ * ...
+ * checkpoints.shutdown();
+ */
+public class CheckpointManager {
+
+    private static final AtomicInteger INSTANCES = new AtomicInteger();
+    private static final String PREFIX = "epoch-";
+
+    private final File directory;
+    private final int keep;
+    private final String fingerprint;
+    private final ExecutorService writer;
+
+    private int saved;
+    private long snapshotNanos;
+    private final AtomicInteger written = new AtomicInteger();
+    private volatile long writeNanos;
+
+
+    /**
+     * @param directory   directory of the checkpoints; created if missing
+     * @param keep        number of checkpoints to keep, at least 1
+     * @param fingerprint fingerprint of the run's configuration and data, see fingerprint
+     */
+    public CheckpointManager(File directory, int keep, String fingerprint) {
+        if (keep < 1) {
+            throw new IllegalArgumentException("keep must be at least 1");
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IllegalArgumentException("Cannot create checkpoint directory " + directory);
+        }
+        this.directory = directory;
+        this.keep = keep;
+        this.fingerprint = fingerprint;
+        this.writer = Executors.newSingleThreadExecutor(new CheckpointThreadFactory(INSTANCES.incrementAndGet()));
+    }
+
+    /**
+     * Copies the network and writes the copy in the background. A write that fails is reported, and
+     * leaves the previous checkpoints as they are.
+     *
+     * @param net   network after the epoch; not modified, and free to train on as soon as save returns
+     * @param epoch epoch that has just finished
+     * @param seed  seed of the data splits and batch shuffles
+     */
+    public void save(MultiLayerNetwork net, int epoch, long seed) {
+        save(net, epoch, seed, null);
+    }
+
+    /**
+     * Like save(net, epoch, seed), and records the state of an early stopping, as of the call: its best epoch
+     * and score so far, and the last epoch it has scored.
+     *
+     * @param earlyStopping early stopping of the run, or null
+     */
+    public void save(MultiLayerNetwork net, final int epoch, final long seed, EarlyStopping earlyStopping) {
+        long start = System.nanoTime();
+        final MultiLayerNetwork copy = net.clone();
+        copy.setUpdater(net.getUpdater().clone());
+        final Properties state = new Properties();
+        if (earlyStopping != null) {
+            earlyStopping.saveState(state);
+        }
+        snapshotNanos += System.nanoTime() - start;
+        saved++;
+
+        writer.submit(new Runnable() {
+            @Override
+            public void run() {
+                long start = System.nanoTime();
+                try {
+                    write(copy, epoch, seed, state);
+                    prune();
+                    writeNanos += System.nanoTime() - start;
+                    written.incrementAndGet();
+                } catch (IOException e) {
+                    System.out.println("Checkpoint of epoch " + epoch + " failed:");
+                    e.printStackTrace();
+                }
+            }
+        });
+    }
+
+    private void write(MultiLayerNetwork copy, int epoch, long seed, Properties state) throws IOException {
+        String name = String.format(PREFIX + "%04d", epoch);
+        File model = new File(directory, name + ".zip");
+        File tmp = new File(directory, name + ".zip.tmp");
+        ModelSerializer.writeModel(copy, tmp, true);
+        replace(tmp, model);
+
+        Properties properties = new Properties();
+        properties.putAll(state);
+        properties.setProperty("epoch", Integer.toString(epoch));
+        properties.setProperty("seed", Long.toString(seed));
+        properties.setProperty("model", model.getName());
+        properties.setProperty("fingerprint", fingerprint);
+        tmp = new File(directory, name + ".properties.tmp");
+        try (OutputStream out = new FileOutputStream(tmp)) {
+            properties.store(out, "Checkpoint after epoch " + epoch);
+        }
+        replace(tmp, new File(directory, name + ".properties"));
+    }
+
+    private static void replace(File from, File to) throws IOException {
+        if (to.exists() && !to.delete() || !from.renameTo(to)) {
+            throw new IOException("Cannot rename " + from + " to " + to);
+        }
+    }
+
+    /**
+     * Deletes all but the last keep checkpoints, except, going by the latest checkpoint's early stopping state,
+     * the best epoch's and those of epochs not scored yet
+     */
+    private void prune() throws IOException {
+        List<Checkpoint> checkpoints = list();
+        if (checkpoints.isEmpty()) {
+            return;
+        }
+        Checkpoint latest = checkpoints.get(checkpoints.size() - 1);
+        for (int i = 0; i < checkpoints.size() - keep; i++) {
+            Checkpoint old = checkpoints.get(i);
+            if (old.epoch != latest.bestEpoch && old.epoch <= latest.scoredThrough) {
+                delete(old);
+            }
+        }
+    }
+
+    /** Deletes a checkpoint, properties file first, so it is never listed without its model file */
+    private void delete(Checkpoint old) throws IOException {
+        File properties = new File(directory, String.format(PREFIX + "%04d.properties", old.epoch));
+        if (properties.exists() && !properties.delete() || old.file.exists() && !old.file.delete()) {
+            throw new IOException("Cannot delete checkpoint " + old.file);
+        }
+    }
+
+    /**
+     * Waits for the checkpoints being written, and looks up the last complete one.
+     *
+     * @return checkpoint of the latest epoch, or null if there is none
+     * @throws IOException if a properties file cannot be read, or if the latest checkpoint was saved by a run
+     *                     with another fingerprint
+     */
+    public Checkpoint latest() throws IOException {
+        await();
+        List<Checkpoint> checkpoints = list();
+        if (checkpoints.isEmpty()) {
+            return null;
+        }
+        Checkpoint latest = checkpoints.get(checkpoints.size() - 1);
+        if (!fingerprint.equals(latest.fingerprint)) {
+            throw new IOException(latest.file + " was saved by a run with another configuration or data (fingerprint "
+                    + latest.fingerprint + ", this run " + fingerprint + "); resume with the same settings, or start over");
+        }
+        return latest;
+    }
+
+    /**
+     * Waits for the checkpoints being written, and lists the complete ones.
+     *
+     * @return the checkpoints in the directory, by epoch
+     * @throws IOException if a properties file cannot be read
+     */
+    public List<Checkpoint> checkpoints() throws IOException {
+        await();
+        return list();
+    }
+
+    /**
+     * Waits for the checkpoints being written, and deletes every checkpoint in the directory, e.g. before a
+     * run that starts over.
+     *
+     * @return number of checkpoints deleted
+     * @throws IOException if a checkpoint cannot be deleted
+     */
+    public int clear() throws IOException {
+        await();
+        List<Checkpoint> checkpoints = list();
+        for (Checkpoint old : checkpoints) {
+            delete(old);
+        }
+        return checkpoints.size();
+    }
+
+    /** @return the complete checkpoints in the directory, by epoch */
+    private List<Checkpoint> list() throws IOException {
+        List<Checkpoint> checkpoints = new ArrayList<>();
+        File[] files = directory.listFiles();
+        if (files == null) {
+            throw new IOException("Cannot list " + directory);
+        }
+        for (File f : files) {
+            if (!f.getName().startsWith(PREFIX) || !f.getName().endsWith(".properties")) {
+                continue;
+            }
+            Properties properties = new Properties();
+            try (InputStream in = new FileInputStream(f)) {
+                properties.load(in);
+            }
+            File model = new File(directory, properties.getProperty("model"));
+            if (model.isFile()) {
+                int epoch = Integer.parseInt(properties.getProperty("epoch"));
+                // without an early stopping state, every epoch counts as scored, so none is kept for scoring
+                checkpoints.add(new Checkpoint(epoch, Long.parseLong(properties.getProperty("seed")),
+                        properties.getProperty("fingerprint"),
+                        Integer.parseInt(properties.getProperty("bestEpoch", "-1")),
+                        Double.parseDouble(properties.getProperty("bestScore", "-Infinity")),
+                        Integer.parseInt(properties.getProperty("scoredThrough", Integer.toString(epoch))), model));
+            }
+        }
+        Collections.sort(checkpoints, new Comparator<Checkpoint>() {
+            @Override
+            public int compare(Checkpoint a, Checkpoint b) {
+                return Integer.compare(a.epoch, b.epoch);
+            }
+        });
+        return checkpoints;
+    }
+
+    /**
+     * Fingerprints a run: a checkpoint is only resumed by a run with the same network configuration and the
+     * same data, as described by the data strings, e.g. file fingerprints and batch sizes.
+     *
+     * @param conf network configuration
+     * @param data anything else the checkpoints depend on
+     * @return hex SHA-1 of the configuration's JSON and the data strings
+     */
+    public static String fingerprint(MultiLayerConfiguration conf, String... data) {
+        MessageDigest sha1;
+        try {
+            sha1 = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 not available", e);
+        }
+        sha1.update(conf.toJson().getBytes(StandardCharsets.UTF_8));
+        for (String d : data) {
+            sha1.update((byte) '\n');
+            sha1.update(d.getBytes(StandardCharsets.UTF_8));
+        }
+        StringBuilder hex = new StringBuilder();
+        for (byte b : sha1.digest()) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * Waits until every checkpoint saved so far has been written.
+     */
+    public void await() {
+        try {
+            writer.submit(new Runnable() {
+                @Override
+                public void run() {
+                }
+            }).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for checkpoints", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * @return one-line summary of the checkpoints saved so far
+     */
+    public String summary() {
+        int n = written.get();
+        return String.format("Checkpoints: %d saved, %d written to %s, copy %.1f ms (training paused), write %.1f ms (background)",
+                saved, n, directory, saved == 0 ? 0.0 : snapshotNanos / 1e6 / saved, n == 0 ? 0.0 : writeNanos / 1e6 / n);
+    }
+
+    /**
+     * Waits for the checkpoints being written, and stops the writer thread. The manager cannot save
+     * afterwards.
+     */
+    public void shutdown() {
+        writer.shutdown();
+        try {
+            writer.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+    /**
+     * A checkpoint on disk: the epoch after which it was saved, the seed and fingerprint of the run, and the
+     * state of its early stopping, if one was saved along.
+     */
+    public static final class Checkpoint {
+        private final int epoch;
+        private final long seed;
+        /** null for checkpoints saved before fingerprints were recorded */
+        private final String fingerprint;
+        private final int bestEpoch;
+        private final double bestScore;
+        private final int scoredThrough;
+        private final File file;
+
+        Checkpoint(int epoch, long seed, String fingerprint, int bestEpoch, double bestScore, int scoredThrough, File file) {
+            this.epoch = epoch;
+            this.seed = seed;
+            this.fingerprint = fingerprint;
+            this.bestEpoch = bestEpoch;
+            this.bestScore = bestScore;
+            this.scoredThrough = scoredThrough;
+            this.file = file;
+        }
+
+        /** @return epoch after which the checkpoint was saved; training resumes with the next one */
+        public int epoch() {
+            return epoch;
+        }
+
+        /** @return seed of the data splits and batch shuffles */
+        public long seed() {
+            return seed;
+        }
+
+        /** @return best epoch of the early stopping when the checkpoint was saved, or -1 */
+        public int bestEpoch() {
+            return bestEpoch;
+        }
+
+        /** @return CV accuracy of bestEpoch */
+        public double bestScore() {
+            return bestScore;
+        }
+
+        /** @return last epoch the early stopping had scored when the checkpoint was saved, or -1 */
+        public int scoredThrough() {
+            return scoredThrough;
+        }
+
+        /** @return the model file, as written by ModelSerializer */
+        public File file() {
+            return file;
+        }
+
+        /**
+         * @return the saved network, with its updater state
+         * @throws IOException if the model file cannot be read
+         */
+        public MultiLayerNetwork load() throws IOException {
+            return ModelSerializer.restoreMultiLayerNetwork(file);
+        }
+
+        /**
+         * Copies the saved parameters and updater state into a network of the same configuration, e.g. the
+         * one just built by the program, so its listeners and settings stay as they are.
+         *
+         * @param net initialized network to restore
+         * @throws IOException if the model file cannot be read
+         */
+        public void restoreInto(MultiLayerNetwork net) throws IOException {
+            MultiLayerNetwork saved = load();
+            if (saved.numParams() != net.numParams()) {
+                throw new IOException(file + " has " + saved.numParams() + " parameters, the network "
+                        + net.numParams());
+            }
+            net.setParams(saved.params());
+            if (saved.getUpdater() != null) {
+                net.setUpdater(saved.getUpdater());
+            }
+        }
+    }
+
+
+    /**
+     * Names writer threads "checkpoint-N" and makes them daemons; shutdown waits for them.
+     */
+    private static final class CheckpointThreadFactory implements ThreadFactory {
+        private final int instance;
+
+        CheckpointThreadFactory(int instance) {
+            this.instance = instance;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "checkpoint-" + instance);
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
@@ -0,0 +1,307 @@
+package cs517;
+
+import org.deeplearning4j.datasets.iterator.DataSetIterator;
+import org.deeplearning4j.eval.Evaluation;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.nd4j.linalg.dataset.DataSet;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Stops training once the accuracy on the cross-validation set stops improving, and keeps the network of
+ * the best epoch. After every epoch, epochDone copies the network and scores the copy on a background
+ * thread while the next epoch trains, so the training only pauses for the copy.
+ * <p>
+ * The decision lags one epoch behind: shouldStop(i), before epoch i, waits until epoch i - 2 has been scored
+ * (the score of epoch i - 1 is being computed while epoch i trains), and decides on the scores of the epochs
+ * up to i - 2 only, even if more are in. Training stops after patience epochs without an improvement of more
+ * than minDelta, always one epoch later than with scoring in the foreground, so how many epochs are trained
+ * does not depend on the timing of the scoring thread. best returns the network of the best epoch either way.
+ * <p>
+ * Only the background thread uses the CV iterator, so it must not be used elsewhere in the meantime.
+ * <p>
+ * A CheckpointManager saves the state (best epoch and score, last epoch scored) with every checkpoint, and
+ * keeps the checkpoints of the best epoch and of the epochs not scored yet; restore picks up from there, so
+ * a resumed run stops at the same epoch and keeps the same best network as one that was never stopped.
+ * <p>
+ * Usage:
+ * <p>
+ * EarlyStopping earlyStopping = new EarlyStopping(cv, 2, 0.001);
+ * for (int i = 0; i < maxEpochs && !earlyStopping.shouldStop(i); i++) {
+ *     net.fit(train);
+ *     train.reset();
+ *     earlyStopping.epochDone(net, i);
+ * }
+ * net.setParams(earlyStopping.best().params());
+ */
+public class EarlyStopping {
+
+    private static final AtomicInteger INSTANCES = new AtomicInteger();
+
+    private final DataSetIterator cv;
+    private final int patience;
+    private final double minDelta;
+    private final ExecutorService scorer;
+
+    /** guarded by this */
+    private int scored;
+    private MultiLayerNetwork best;
+    private int bestEpoch = -1;
+    private double bestScore = Double.NEGATIVE_INFINITY;
+    private int lastScoredEpoch = -1;
+    /** epoch -> best epoch once that epoch had been scored; shouldStop decides on these */
+    private final TreeMap<Integer, Integer> bestEpochAfter = new TreeMap<>();
+    /** epochs submitted for scoring and not scored yet */
+    private final Set<Integer> pending = new HashSet<>();
+    private long scoreNanos;
+    private RuntimeException failure;
+
+
+    /**
+     * @param cv       cross-validation batches, time series with label masks
+     * @param patience number of epochs without improvement after which training stops, at least 1
+     * @param minDelta smallest increase of the CV accuracy that counts as an improvement
+     */
+    public EarlyStopping(DataSetIterator cv, int patience, double minDelta) {
+        if (patience < 1) {
+            throw new IllegalArgumentException("patience must be at least 1");
+        }
+        this.cv = cv;
+        this.patience = patience;
+        this.minDelta = minDelta;
+        this.scorer = Executors.newSingleThreadExecutor(new ScorerThreadFactory(INSTANCES.incrementAndGet()));
+    }
+
+    /**
+     * Copies the network and scores the copy on the CV set in the background.
+     *
+     * @param net   network after the epoch; free to train on as soon as epochDone returns
+     * @param epoch epoch that has just finished
+     */
+    public void epochDone(MultiLayerNetwork net, int epoch) {
+        submit(net.clone(), epoch);
+    }
+
+    /** Scores a network of an epoch in the background; the network must not be used elsewhere */
+    private void submit(final MultiLayerNetwork snapshot, final int epoch) {
+        synchronized (this) {
+            pending.add(epoch);
+        }
+        scorer.submit(new Runnable() {
+            @Override
+            public void run() {
+                long start = System.nanoTime();
+                try {
+                    double score = score(snapshot);
+                    record(snapshot, epoch, score, System.nanoTime() - start);
+                } catch (RuntimeException | Error e) {
+                    // errors too (e.g. out of native memory), or shouldStop would wait for the score forever
+                    synchronized (EarlyStopping.this) {
+                        failure = e instanceof RuntimeException ? (RuntimeException) e : new RuntimeException(e);
+                        EarlyStopping.this.notifyAll();
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Picks up the early stopping of a run that is resumed from a checkpoint: sets the best epoch and score
+     * recorded with the checkpoint, with the best epoch's network from its own checkpoint, and scores the
+     * epochs up to the checkpoint's that had not been scored yet, from their checkpoints, in the background.
+     * Call before the first epochDone.
+     *
+     * @param checkpoints checkpoints of the run
+     * @param latest      checkpoint the run resumes from
+     * @throws IOException if a checkpoint that is needed cannot be read, or is missing
+     */
+    public void restore(CheckpointManager checkpoints, CheckpointManager.Checkpoint latest) throws IOException {
+        synchronized (this) {
+            bestEpoch = latest.bestEpoch();
+            bestScore = latest.bestScore();
+            lastScoredEpoch = latest.scoredThrough();
+            if (lastScoredEpoch >= 0) {
+                bestEpochAfter.put(lastScoredEpoch, bestEpoch);
+            }
+        }
+        boolean foundBest = latest.bestEpoch() < 0;
+        for (CheckpointManager.Checkpoint c : checkpoints.checkpoints()) {
+            if (c.epoch() == latest.bestEpoch()) {
+                MultiLayerNetwork net = c.load();
+                synchronized (this) {
+                    best = net;
+                }
+                foundBest = true;
+            } else if (c.epoch() > latest.scoredThrough() && c.epoch() <= latest.epoch()) {
+                submit(c.load(), c.epoch());
+            }
+        }
+        if (!foundBest) {
+            throw new IOException("The checkpoint of the best epoch " + latest.bestEpoch() + " is missing");
+        }
+        System.out.println(String.format("Early stopping resumed: best epoch %d with CV accuracy %.4f, scored through epoch %d",
+                latest.bestEpoch(), latest.bestScore(), latest.scoredThrough()));
+    }
+
+    /**
+     * Writes the state a resumed run needs into checkpoint properties: the best epoch and score, and the last
+     * epoch scored. Epochs after that are scored again from their checkpoints by restore.
+     */
+    synchronized void saveState(Properties properties) {
+        properties.setProperty("bestEpoch", Integer.toString(bestEpoch));
+        properties.setProperty("bestScore", Double.toString(bestScore));
+        properties.setProperty("scoredThrough", Integer.toString(lastScoredEpoch));
+    }
+
+    /** @return accuracy of the network on the CV set */
+    private double score(MultiLayerNetwork net) {
+        Evaluation evaluation = new Evaluation();
+        try {
+            while (cv.hasNext()) {
+                DataSet t = cv.next();
+                evaluation.evalTimeSeries(t.getLabels(),
+                        net.output(t.getFeatureMatrix(), false, t.getFeaturesMaskArray(), t.getLabelsMaskArray()),
+                        t.getLabelsMaskArray());
+            }
+        } finally {
+            cv.reset();
+        }
+        return evaluation.accuracy();
+    }
+
+    private synchronized void record(MultiLayerNetwork snapshot, int epoch, double score, long nanos) {
+        scored++;
+        lastScoredEpoch = Math.max(lastScoredEpoch, epoch);
+        scoreNanos += nanos;
+        String note = "";
+        if (score > bestScore + minDelta) {
+            best = snapshot;
+            bestEpoch = epoch;
+            bestScore = score;
+            note = " (best so far)";
+        }
+        bestEpochAfter.put(epoch, bestEpoch);
+        pending.remove(epoch);
+        notifyAll();
+        System.out.println(String.format("Epoch %d CV accuracy %.4f%s", epoch, score, note));
+    }
+
+    /**
+     * Call before each epoch. Waits until epoch - 2 has been scored, if it was done, and decides on the scores
+     * up to it, so the decision is the same however fast the scoring thread is.
+     *
+     * @param epoch epoch about to be trained
+     * @return true once patience epochs up to epoch - 2 have passed without an improvement
+     */
+    public synchronized boolean shouldStop(int epoch) {
+        int decided = epoch - 2;
+        try {
+            while (failure == null && pending.contains(decided)) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for the CV scores", e);
+        }
+        checkFailure();
+        Integer best = bestEpochAfter.get(decided);
+        return best != null && best >= 0 && decided - best >= patience;
+    }
+
+    /**
+     * Waits until every epoch done so far has been scored.
+     *
+     * @return copy of the network of the best epoch, or null if no epoch was done
+     */
+    public MultiLayerNetwork best() {
+        await();
+        synchronized (this) {
+            checkFailure();
+            return best;
+        }
+    }
+
+    /**
+     * @return epoch with the best CV accuracy so far, or -1 if none has been scored
+     */
+    public synchronized int bestEpoch() {
+        return bestEpoch;
+    }
+
+    /**
+     * @return best CV accuracy so far
+     */
+    public synchronized double bestScore() {
+        return bestScore;
+    }
+
+    private void checkFailure() {
+        if (failure != null) {
+            throw new RuntimeException("Scoring the CV set failed", failure);
+        }
+    }
+
+    private void await() {
+        try {
+            scorer.submit(new Runnable() {
+                @Override
+                public void run() {
+                }
+            }).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for the CV scores", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * @return one-line summary of the epochs scored so far
+     */
+    public synchronized String summary() {
+        return String.format("EarlyStopping: %d epochs scored in the background (%.1f s each), best epoch %d with CV accuracy %.4f",
+                scored, scored == 0 ? 0.0 : scoreNanos / 1e9 / scored, bestEpoch, bestScore);
+    }
+
+    /**
+     * Waits for the scores being computed, and stops the scoring thread.
+     */
+    public void shutdown() {
+        scorer.shutdown();
+        try {
+            scorer.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+    /**
+     * Names scoring threads "early-stopping-N" and makes them daemons; shutdown waits for them.
+     */
+    private static final class ScorerThreadFactory implements ThreadFactory {
+        private final int instance;
+
+        ScorerThreadFactory(int instance) {
+            this.instance = instance;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "early-stopping-" + instance);
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
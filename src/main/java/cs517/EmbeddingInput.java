@@ -0,0 +1,86 @@
+package cs517;
+
+import cs517.data.WordVectorTable;
+import org.deeplearning4j.nn.api.Layer;
+import org.deeplearning4j.nn.conf.MultiLayerConfiguration;
+import org.deeplearning4j.nn.conf.Updater;
+import org.deeplearning4j.nn.conf.layers.EmbeddingLayer;
+import org.deeplearning4j.nn.conf.preprocessor.FeedForwardToRnnPreProcessor;
+import org.deeplearning4j.nn.conf.preprocessor.RnnToFeedForwardPreProcessor;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.nd4j.linalg.factory.Nd4j;
+
+/**
+ * Index-based network input: instead of feeding [batch, vectorSize, time] word vector sequences, an
+ * iterator in index mode (see SentimentIterator.setIndexFeatures) feeds [batch, 1, time] word vector row
+ * ids, and a frozen EmbeddingLayer, seeded with the word vectors, does the lookup inside the network.
+ * Batches shrink by a factor of vectorSize.
+ * <p>
+ * The embedding layer is feed-forward, so it sits between an RnnToFeedForward and a FeedForwardToRnn
+ * preprocessor. It is frozen by giving it plain SGD with a zero learning rate: dl4j 0.4 has no frozen
+ * layers, and SGD, unlike RMSPROP, keeps no per-weight history for the vocabulary-sized matrix.
+ * <p>
+ * Frozen is not free: dl4j 0.4's EmbeddingLayer still computes a dense gradient of the matrix's shape for
+ * every mini-batch, which SGD then applies with the zero learning rate. ParallelTrainer skips the layer when
+ * averaging, but EarlyStopping's clones and CheckpointManager's checkpoints still copy the whole matrix, once
+ * per epoch. EmbeddingInputTest checks the layer against word vector features and that it stays frozen.
+ * <p>
+ * Usage:
+ * <p>
+ * list.layer(0, EmbeddingInput.layer(table)).layer(1, new GravesLSTM.Builder().nIn(table.layerSize())...
+ * EmbeddingInput.addPreProcessors(list.pretrain(false).backprop(true), 0);
+ * net.init();
+ * EmbeddingInput.seed(net, 0, table);
+ */
+public final class EmbeddingInput {
+
+    private EmbeddingInput() {
+    }
+
+    /**
+     * @param table word vectors the layer will be seeded with
+     * @return configuration of a frozen embedding layer: one row per word of table, identity activation
+     */
+    public static EmbeddingLayer layer(WordVectorTable table) {
+        return new EmbeddingLayer.Builder()
+                .nIn(table.index().size()).nOut(table.layerSize())
+                .activation("identity")
+                .updater(Updater.SGD).learningRate(0).biasLearningRate(0)
+                .l2(0)
+                .build();
+    }
+
+    /**
+     * Adds the preprocessors around an embedding layer: time steps are flattened into examples on the
+     * way in, and the looked-up vectors turned back into a time series on the way out.
+     *
+     * @param builder        network configuration builder, after its layers have been set
+     * @param embeddingLayer index of the embedding layer; the next layer must be recurrent
+     * @return builder
+     */
+    public static MultiLayerConfiguration.Builder addPreProcessors(MultiLayerConfiguration.Builder builder, int embeddingLayer) {
+        return builder
+                .inputPreProcessor(embeddingLayer, new RnnToFeedForwardPreProcessor())
+                .inputPreProcessor(embeddingLayer + 1, new FeedForwardToRnnPreProcessor());
+    }
+
+    /**
+     * Copies the word vectors into an initialized network's embedding layer, and zeroes its bias, so the
+     * layer outputs exactly the vector of each row id.
+     *
+     * @param net            initialized network
+     * @param embeddingLayer index of the layer configured with layer(table)
+     * @param table          word vectors, in row id order
+     */
+    public static void seed(MultiLayerNetwork net, int embeddingLayer, WordVectorTable table) {
+        int rows = table.index().size();
+        int cols = table.layerSize();
+        float[] weights = new float[rows * cols];
+        for (int row = 0; row < rows; row++) {
+            table.copyRow(row, weights, row * cols);
+        }
+        Layer layer = net.getLayer(embeddingLayer);
+        layer.getParam("W").assign(Nd4j.create(weights, new int[]{rows, cols}));
+        layer.getParam("b").assign(0);
+    }
+}
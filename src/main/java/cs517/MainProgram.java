@@ -1,14 +1,18 @@
 package cs517;
 
 import cs517.data.DataSetManager;
+import cs517.data.EmbeddingRegistry;
+import cs517.data.MultiClassIterator;
+import cs517.data.TimedDataSetIterator;
 import org.deeplearning4j.datasets.iterator.DataSetIterator;
 import org.deeplearning4j.eval.Evaluation;
-import org.nd4j.linalg.api.ndarray.INDArray;
-import org.nd4j.linalg.dataset.DataSet;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Random;
 
 /**
  * Created by allen on 6/4/2016.
@@ -16,7 +20,7 @@ import java.util.List;
 public class MainProgram {
 
 
-    public static void main(String[] args) {
+    public static void main(String[] args) throws IOException {
         int maxLength = 50;
         int vectorSize = 100;
         int batchSize = 32;
@@ -33,45 +37,89 @@ public class MainProgram {
             e.printStackTrace();
         }
 
-        List<DataSetIterator> iterators = dm.makeIterators(batchSize);
+        RNN myNN = new RNN();
+        myNN.vectorSize = vectorSize;
+
+        //A checkpoint is saved after every epoch; with --resume, a run that was stopped resumes after the
+        //latest one, with the same splits and batch shuffles, provided the network and data are unchanged
+        boolean resume = Arrays.asList(args).contains("--resume");
+        EmbeddingRegistry registry = EmbeddingRegistry.getDefault();
+        CheckpointManager checkpoints = new CheckpointManager(new File("checkpoints"), 3,
+                CheckpointManager.fingerprint(myNN.net.getLayerWiseConfigurations(),
+                        registry.fingerprint(ldf), registry.fingerprint(tdf),
+                        "batchSize=" + batchSize, "maxLength=" + maxLength));
+        CheckpointManager.Checkpoint latest = resume ? checkpoints.latest() : null;
+        if (!resume) {
+            int cleared = checkpoints.clear();
+            if (cleared > 0) {
+                System.out.println("Starting over: deleted " + cleared + " checkpoints (pass --resume to resume)");
+            }
+        }
+        long seed = latest == null ? new Random().nextLong() : latest.seed();
+
+        List<DataSetIterator> iterators = dm.makeIterators(batchSize, seed);
         DataSetIterator train = iterators.get(0);
         DataSetIterator cv = iterators.get(1);
         DataSetIterator test = iterators.get(2);
 
-        RNN myNN = new RNN();
-        myNN.vectorSize = vectorSize;
-
 //            WordVectors wordVectors = WordVectorSerializer.loadTxtVectors(new File("sentimentWordVectors.txt"));
 //            vectorSize = wordVectors.lookupTable().layerSize();
         myNN.net.init();
 //            myNN.net.setListeners(new ScoreIterationListener(1));
 //            myNN.net.setListeners(new HistogramIterationListener(1));
+        int firstEpoch = 0;
+        if (latest != null) {
+            latest.restoreInto(myNN.net);
+            firstEpoch = latest.epoch() + 1;
+            ((MultiClassIterator) train).setEpoch(firstEpoch);
+            System.out.println("Resuming after epoch " + latest.epoch() + " from " + latest.file());
+        }
 
-        System.out.println("Starting training");
-        for (int i = 0; i < myNN.nEpochs; i++) {
-            myNN.net.fit(train);
-            train.reset();
-            System.out.println("Epoch " + i + " complete. Starting evaluation:");
-
-            //Run evaluation. This is on 25k reviews, so can take some time
-            Evaluation evaluation = new Evaluation();
-
-            while (test.hasNext()) {
-
-                DataSet t = test.next();
-                INDArray features = t.getFeatureMatrix();
-                INDArray labels = t.getLabels();
-                INDArray inMask = t.getFeaturesMaskArray();
-                INDArray outMask = t.getLabelsMaskArray();
-                INDArray predicted = myNN.net.output(features, false, inMask, outMask);
-
-                evaluation.evalTimeSeries(labels, predicted, outMask);
-                i++;
-            }
-            test.reset();
+        int threads = Runtime.getRuntime().availableProcessors();
+        //Throughput, batch wait and fit times, GC and allocation go to a CSV file and to JMX every 10 seconds
+        TimedDataSetIterator timedTrain = new TimedDataSetIterator(train);
+        ThroughputListener throughput = new ThroughputListener("MainProgram", timedTrain,
+                new File("logs/throughput-MainProgram.csv"), 10);
+        myNN.net.setListeners(throughput);
+        ParallelTrainer trainer = new ParallelTrainer(myNN.net, threads, 5);
+        ParallelEvaluator evaluator = new ParallelEvaluator(threads);
+
+        //Each epoch is scored on the CV set in the background while the next one trains; training stops once
+        //the CV accuracy stops improving, and the network of the best epoch is kept
+        //On resume, it picks up the scores and best network saved with the checkpoints
+        EarlyStopping earlyStopping = new EarlyStopping(cv, 2, 0.001);
+        if (latest != null) {
+            earlyStopping.restore(checkpoints, latest);
+        }
 
-            System.out.println(evaluation.stats());
+        System.out.println("Starting training");
+        for (int i = firstEpoch; i < myNN.nEpochs && !earlyStopping.shouldStop(i); i++) {
+            trainer.fit(timedTrain);
+            timedTrain.reset();
+            System.out.println(trainer.summary());
+            System.out.println(throughput.summary());
+            checkpoints.save(myNN.net, i, seed, earlyStopping);
+            earlyStopping.epochDone(myNN.net, i);
+            System.out.println("Epoch " + i + " complete.");
+        }
+        MultiLayerNetwork best = earlyStopping.best();
+        if (best != null) {
+            myNN.net.setParams(best.params());
         }
+        System.out.println(earlyStopping.summary());
+
+        //Run evaluation of the best epoch. This is on 25k reviews, so it is spread over several threads
+        System.out.println("Starting evaluation:");
+        Evaluation evaluation = evaluator.evaluate(myNN.net, test);
+        System.out.println(evaluator.summary());
+        System.out.println(evaluation.stats());
+
+        throughput.close();
+        trainer.shutdown();
+        evaluator.shutdown();
+        earlyStopping.shutdown();
+        checkpoints.shutdown();
+        System.out.println(checkpoints.summary());
         System.out.println("----- Example complete -----");
 
     }
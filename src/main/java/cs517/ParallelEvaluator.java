@@ -0,0 +1,195 @@
+package cs517;
+
+import org.deeplearning4j.datasets.iterator.DataSetIterator;
+import org.deeplearning4j.eval.Evaluation;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Evaluates a network on a test set with several threads. A MultiLayerNetwork keeps the activations of
+ * its last forward pass, so it cannot run two batches at once; every thread gets its own clone of the
+ * network instead, and the clones are only refreshed with the network's current parameters between
+ * evaluations. Each thread takes the next batch from the iterator, runs it through its clone and counts
+ * the result in an Evaluation of its own; the Evaluations are merged at the end.
+ * <p>
+ * Threads take batches from the iterator one at a time, so it does not need to be thread-safe, and copy
+ * each batch before letting go of the iterator: a thread may still be evaluating a batch after the others
+ * have taken many more, so iterators that recycle their buffers (MultiClassIterator) would otherwise
+ * overwrite it.
+ * <p>
+ * Usage:
+ * <p>
+ * ParallelEvaluator evaluator = new ParallelEvaluator(4);
+ * Evaluation evaluation = evaluator.evaluate(net, test);
+ * System.out.println(evaluation.stats());
+ * System.out.println(evaluator.summary());
+ */
+public class ParallelEvaluator {
+
+    private static final AtomicInteger INSTANCES = new AtomicInteger();
+
+    private final int threads;
+    private final ExecutorService pool;
+    private MultiLayerNetwork source;
+    private final List<MultiLayerNetwork> replicas = new ArrayList<>();
+
+    private long reviews;
+    private long batches;
+    private long nanos;
+
+
+    /**
+     * @param threads number of evaluation threads, each with its own copy of the network
+     */
+    public ParallelEvaluator(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be at least 1");
+        }
+        this.threads = threads;
+        this.pool = Executors.newFixedThreadPool(threads, new EvaluatorThreadFactory(INSTANCES.incrementAndGet()));
+    }
+
+    /**
+     * Runs every remaining batch of test through the network, and resets test afterwards.
+     *
+     * @param net  network to evaluate; not modified
+     * @param test time series test batches, with label masks
+     * @return merged evaluation of all batches
+     */
+    public Evaluation evaluate(MultiLayerNetwork net, final DataSetIterator test) {
+        refreshReplicas(net);
+        long start = System.nanoTime();
+
+        List<Future<Evaluation>> results = new ArrayList<>(threads);
+        final AtomicInteger reviewCount = new AtomicInteger();
+        final AtomicInteger batchCount = new AtomicInteger();
+        for (final MultiLayerNetwork replica : replicas) {
+            results.add(pool.submit(new Callable<Evaluation>() {
+                @Override
+                public Evaluation call() {
+                    Evaluation evaluation = new Evaluation();
+                    while (true) {
+                        DataSet t;
+                        synchronized (test) {
+                            if (!test.hasNext()) {
+                                return evaluation;
+                            }
+                            t = copy(test.next());
+                        }
+                        INDArray features = t.getFeatureMatrix();
+                        INDArray labels = t.getLabels();
+                        INDArray inMask = t.getFeaturesMaskArray();
+                        INDArray outMask = t.getLabelsMaskArray();
+                        INDArray predicted = replica.output(features, false, inMask, outMask);
+
+                        evaluation.evalTimeSeries(labels, predicted, outMask);
+                        reviewCount.addAndGet(features.size(0));
+                        batchCount.incrementAndGet();
+                    }
+                }
+            }));
+        }
+
+        Evaluation merged = new Evaluation();
+        try {
+            for (Future<Evaluation> f : results) {
+                merged.merge(f.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while evaluating", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Evaluation failed", e.getCause());
+        } finally {
+            for (Future<Evaluation> f : results) {
+                f.cancel(true);
+            }
+            test.reset();
+        }
+
+        nanos = System.nanoTime() - start;
+        reviews = reviewCount.get();
+        batches = batchCount.get();
+        return merged;
+    }
+
+    /**
+     * @return copy of a batch, masks included, that stays valid when the iterator reuses its buffers
+     */
+    private static DataSet copy(DataSet ds) {
+        INDArray featuresMask = ds.getFeaturesMaskArray();
+        INDArray labelsMask = ds.getLabelsMaskArray();
+        return new DataSet(ds.getFeatureMatrix().dup(), ds.getLabels().dup(),
+                featuresMask == null ? null : featuresMask.dup(), labelsMask == null ? null : labelsMask.dup());
+    }
+
+    /** Clones the network once per thread, or copies its current parameters into the existing clones */
+    private void refreshReplicas(MultiLayerNetwork net) {
+        if (net != source) {
+            replicas.clear();
+            for (int i = 0; i < threads; i++) {
+                replicas.add(net.clone());
+            }
+            source = net;
+            return;
+        }
+        INDArray params = net.params();
+        for (MultiLayerNetwork replica : replicas) {
+            replica.setParams(params);
+        }
+    }
+
+    /**
+     * @return throughput of the last evaluation, in reviews per second
+     */
+    public double reviewsPerSecond() {
+        return nanos == 0 ? 0.0 : reviews / (nanos / 1e9);
+    }
+
+    /**
+     * @return one-line summary of the last evaluation
+     */
+    public String summary() {
+        return String.format("ParallelEvaluator: %d reviews in %d batches on %d threads in %.1f s (%.1f reviews/s)",
+                reviews, batches, threads, nanos / 1e9, reviewsPerSecond());
+    }
+
+    /**
+     * Stops the evaluation threads. The evaluator cannot be used afterwards.
+     */
+    public void shutdown() {
+        pool.shutdownNow();
+    }
+
+
+    /**
+     * Names evaluation threads "evaluator-N-M" and makes them daemons, so a forgotten shutdown does not
+     * keep the JVM alive.
+     */
+    private static final class EvaluatorThreadFactory implements ThreadFactory {
+        private final int instance;
+        private final AtomicInteger count = new AtomicInteger();
+
+        EvaluatorThreadFactory(int instance) {
+            this.instance = instance;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "evaluator-" + instance + "-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
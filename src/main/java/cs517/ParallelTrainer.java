@@ -0,0 +1,292 @@
+package cs517;
+
+import org.deeplearning4j.datasets.iterator.DataSetIterator;
+import org.deeplearning4j.nn.api.Layer;
+import org.deeplearning4j.nn.api.Updater;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.deeplearning4j.nn.updater.aggregate.UpdaterAggregator;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Data-parallel training on one machine: several replicas of a network train on different mini-batches at
+ * the same time, and every averagingFrequency batches per replica, their parameters and updater state (e.g.
+ * the RMSPROP caches) are averaged and copied back into every replica. A small GravesLSTM gets little out
+ * of ND4J's BLAS threads, so this is how the training uses more than one core.
+ * <p>
+ * Replicas take batches from the iterator one at a time, so it does not need to be thread-safe, and copy
+ * each batch before letting go of the iterator: a replica may still be fitting a batch long after the others
+ * have taken many more, so iterators that recycle their buffers (MultiClassIterator) would otherwise
+ * overwrite it. Every replica also gets its own copy of the averaged parameters, since
+ * MultiLayerNetwork.setParams keeps views of the array it is given rather than copying it.
+ * <p>
+ * Layers with zero learning rates, e.g. a frozen EmbeddingInput layer, never change, so only the other
+ * layers are averaged; a vocabulary-sized embedding matrix would otherwise be summed and copied into every
+ * replica at every averaging.
+ * <p>
+ * After every fit, the network the trainer was made with holds the averaged parameters and updater, so it
+ * can be evaluated or saved as usual. The network's iteration listeners are called by the first replica.
+ * <p>
+ * The first fit starts with a few batches (see setBaselineBatches) trained by a single replica alone, which
+ * measures the single-replica rate on this machine; the summary's speedup is the rate of the parallel
+ * rounds, in batches per second, over that rate. Batch sizes and lengths vary, so it is a rough figure,
+ * but unlike the replicas' mean concurrency, which it also reports, it includes the cost of contention.
+ * <p>
+ * Usage:
+ * <p>
+ * ParallelTrainer trainer = new ParallelTrainer(net, 4, 5);
+ * trainer.fit(train);
+ * System.out.println(trainer.summary());
+ */
+public class ParallelTrainer {
+
+    private static final AtomicInteger INSTANCES = new AtomicInteger();
+
+    private final MultiLayerNetwork net;
+    private final int averagingFrequency;
+    private final List<MultiLayerNetwork> replicas = new ArrayList<>();
+    /** indices of the layers that have parameters and a non-zero learning rate */
+    private final List<Integer> trainable = new ArrayList<>();
+    private final ExecutorService pool;
+
+    private long reviews;
+    private long batches;
+    private long averagings;
+    private long wallNanos;
+    private final AtomicLong busyNanos = new AtomicLong();
+    private int baselineBatches = 20;
+    private long singleBatches;
+    private long singleNanos;
+    private long parallelBatches;
+    private long parallelNanos;
+
+
+    /**
+     * @param net                initialized network to train
+     * @param replicas           number of replicas, each trained on its own thread
+     * @param averagingFrequency number of batches each replica fits between two averagings
+     */
+    public ParallelTrainer(MultiLayerNetwork net, int replicas, int averagingFrequency) {
+        if (replicas < 1 || averagingFrequency < 1) {
+            throw new IllegalArgumentException("replicas and averagingFrequency must be at least 1");
+        }
+        this.net = net;
+        this.averagingFrequency = averagingFrequency;
+        for (int i = 0; i < replicas; i++) {
+            this.replicas.add(net.clone());
+        }
+        Layer[] layers = net.getLayers();
+        for (int i = 0; i < layers.length; i++) {
+            org.deeplearning4j.nn.conf.layers.Layer conf = layers[i].conf().getLayer();
+            if (layers[i].numParams() > 0 && (conf.getLearningRate() != 0 || conf.getBiasLearningRate() != 0)) {
+                trainable.add(i);
+            }
+        }
+        this.pool = Executors.newFixedThreadPool(replicas, new TrainerThreadFactory(INSTANCES.incrementAndGet()));
+    }
+
+    /**
+     * Sets the number of batches the first fit trains on a single replica, to measure the speedup. Defaults
+     * to 20.
+     *
+     * @param baselineBatches number of batches, or 0 not to measure the speedup
+     */
+    public void setBaselineBatches(int baselineBatches) {
+        this.baselineBatches = baselineBatches;
+    }
+
+    /**
+     * Trains on every remaining batch of train, like net.fit(train).
+     *
+     * @param train training batches
+     */
+    public void fit(final DataSetIterator train) {
+        long start = System.nanoTime();
+        // start from the network's current state, which may have been changed since the last fit
+        INDArray params = net.params();
+        Updater updater = net.getUpdater();
+        for (MultiLayerNetwork replica : replicas) {
+            replica.setParams(params.dup());
+            replica.setUpdater(updater.clone());
+        }
+        replicas.get(0).setListeners(net.getListeners());
+
+        final AtomicInteger reviewCount = new AtomicInteger();
+        if (singleNanos == 0 && baselineBatches > 0 && replicas.size() > 1) {
+            measureSingleReplica(train, reviewCount);
+        }
+
+        long parallelStart = System.nanoTime();
+        long batchesBefore = batches;
+        boolean more = true;
+        while (more) {
+            List<Future<Integer>> round = new ArrayList<>(replicas.size());
+            for (final MultiLayerNetwork replica : replicas) {
+                round.add(pool.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() {
+                        int fitted = 0;
+                        for (; fitted < averagingFrequency; fitted++) {
+                            DataSet ds;
+                            synchronized (train) {
+                                if (!train.hasNext()) {
+                                    break;
+                                }
+                                ds = copy(train.next());
+                            }
+                            long t = System.nanoTime();
+                            replica.fit(ds);
+                            busyNanos.addAndGet(System.nanoTime() - t);
+                            reviewCount.addAndGet(ds.numExamples());
+                        }
+                        return fitted;
+                    }
+                }));
+            }
+
+            List<MultiLayerNetwork> trained = new ArrayList<>(replicas.size());
+            try {
+                for (int i = 0; i < round.size(); i++) {
+                    int fitted = round.get(i).get();
+                    if (fitted > 0) {
+                        trained.add(replicas.get(i));
+                        batches += fitted;
+                    }
+                    if (fitted < averagingFrequency) {
+                        more = false;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while training", e);
+            } catch (ExecutionException e) {
+                throw new RuntimeException("Training failed", e.getCause());
+            }
+            if (!trained.isEmpty()) {
+                average(trained);
+            }
+        }
+
+        long end = System.nanoTime();
+        parallelNanos += end - parallelStart;
+        parallelBatches += batches - batchesBefore;
+        wallNanos += end - start;
+        reviews += reviewCount.get();
+    }
+
+    /**
+     * Trains the first baselineBatches batches on the first replica alone, timing them, and copies the
+     * result into the other replicas and the network.
+     */
+    private void measureSingleReplica(DataSetIterator train, AtomicInteger reviewCount) {
+        MultiLayerNetwork replica = replicas.get(0);
+        int fitted = 0;
+        long t = System.nanoTime();
+        for (; fitted < baselineBatches && train.hasNext(); fitted++) {
+            DataSet ds = train.next();
+            replica.fit(ds);
+            reviewCount.addAndGet(ds.numExamples());
+        }
+        long nanos = System.nanoTime() - t;
+        if (fitted > 0) {
+            busyNanos.addAndGet(nanos);
+            singleNanos = nanos;
+            singleBatches = fitted;
+            batches += fitted;
+            average(replicas.subList(0, 1));
+        }
+    }
+
+    /**
+     * Averages the parameters of the trainable layers and the updater state of the replicas that trained in
+     * the last round, and copies the averages into every replica and into the network.
+     */
+    private void average(List<MultiLayerNetwork> trained) {
+        for (int layer : trainable) {
+            INDArray params = trained.get(0).getLayer(layer).params().dup();
+            for (int i = 1; i < trained.size(); i++) {
+                params.addi(trained.get(i).getLayer(layer).params());
+            }
+            params.divi(trained.size());
+            for (MultiLayerNetwork replica : replicas) {
+                replica.getLayer(layer).setParams(params.dup());
+            }
+            net.getLayer(layer).setParams(params);
+        }
+
+        UpdaterAggregator aggregator = trained.get(0).getUpdater().getAggregator(true);
+        for (int i = 1; i < trained.size(); i++) {
+            aggregator.aggregate(trained.get(i).getUpdater());
+        }
+        Updater updater = aggregator.getUpdater();
+        for (MultiLayerNetwork replica : replicas) {
+            replica.setUpdater(updater.clone());
+        }
+        net.setUpdater(updater.clone());
+        averagings++;
+    }
+
+    /**
+     * @return copy of a batch, masks included, that stays valid when the iterator reuses its buffers
+     */
+    private static DataSet copy(DataSet ds) {
+        INDArray featuresMask = ds.getFeaturesMaskArray();
+        INDArray labelsMask = ds.getLabelsMaskArray();
+        return new DataSet(ds.getFeatureMatrix().dup(), ds.getLabels().dup(),
+                featuresMask == null ? null : featuresMask.dup(), labelsMask == null ? null : labelsMask.dup());
+    }
+
+    /**
+     * @return one-line summary of all fits so far
+     */
+    public String summary() {
+        double seconds = wallNanos / 1e9;
+        String speedup = singleBatches == 0 || parallelBatches == 0 ? "speedup not measured"
+                : String.format("speedup over one replica %.2fx (%.1f vs %.1f batches/s)",
+                        (parallelBatches / (parallelNanos / 1e9)) / (singleBatches / (singleNanos / 1e9)),
+                        parallelBatches / (parallelNanos / 1e9), singleBatches / (singleNanos / 1e9));
+        return String.format("ParallelTrainer: %d reviews in %d batches on %d replicas in %.1f s (%.1f reviews/s), "
+                        + "%d averagings, mean concurrency %.2f, %s",
+                reviews, batches, replicas.size(), seconds, seconds == 0 ? 0.0 : reviews / seconds, averagings,
+                wallNanos == 0 ? 0.0 : (double) busyNanos.get() / wallNanos, speedup);
+    }
+
+    /**
+     * Stops the training threads. The trainer cannot be used afterwards.
+     */
+    public void shutdown() {
+        pool.shutdownNow();
+    }
+
+
+    /**
+     * Names training threads "trainer-N-M" and makes them daemons, so a forgotten shutdown does not keep
+     * the JVM alive.
+     */
+    private static final class TrainerThreadFactory implements ThreadFactory {
+        private final int instance;
+        private final AtomicInteger count = new AtomicInteger();
+
+        TrainerThreadFactory(int instance) {
+            this.instance = instance;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "trainer-" + instance + "-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
@@ -4,44 +4,90 @@ package cs517;
  * Created by Renita on 6/6/16.
  */
 
-import org.apache.commons.io.FileUtils;
-import org.apache.commons.io.FilenameUtils;
+import cs517.data.AclImdbDirectory;
+import cs517.data.BatchSampler;
+import cs517.data.EmbeddingRegistry;
+import cs517.data.PaddingStats;
+import cs517.data.ReviewSource;
+import cs517.data.TokenIdCorpus;
+import cs517.data.WordVectorTable;
 import org.deeplearning4j.datasets.iterator.DataSetIterator;
 import org.deeplearning4j.models.embeddings.wordvectors.WordVectors;
-import org.deeplearning4j.text.tokenization.tokenizer.preprocessor.CommonPreprocessor;
-import org.deeplearning4j.text.tokenization.tokenizerfactory.DefaultTokenizerFactory;
 import org.deeplearning4j.text.tokenization.tokenizerfactory.TokenizerFactory;
 import org.nd4j.linalg.api.ndarray.INDArray;
 import org.nd4j.linalg.dataset.DataSet;
 import org.nd4j.linalg.dataset.api.DataSetPreProcessor;
 import org.nd4j.linalg.factory.Nd4j;
-import org.nd4j.linalg.indexing.INDArrayIndex;
-import org.nd4j.linalg.indexing.NDArrayIndex;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /** This is a DataSetIterator that is specialized for the IMDB review dataset used in the Word2VecSentimentRNN example
  * It takes either the train or test set data from this data set, plus a WordVectors object.
  * This is a modified version from the dl4j Examples created by:
  * @author Alex Black
+ *
+ * Reviews come from a ReviewSource: either the extracted aclImdb directory, read one file per review, or a
+ * PackedCorpus of it, which avoids opening a file per review.
+ *
+ * Reading, tokenizing and looking up the words of each review is spread over a pool of worker threads,
+ * which work ahead of the cursor on the next reviews. Batches are still assembled strictly in cursor
+ * order (alternating positive and negative reviews), so the data is the same as with a single thread.
  */
 
 public class SentimentIterator implements DataSetIterator {
     private final WordVectors wordVectors;
+    private final WordVectorTable table;
     private final int batchSize;
     private final int vectorSize;
     private final int truncateLength;
 
     private int cursor = 0;
-    private final File[] positiveFiles;
-    private final File[] negativeFiles;
+    private final ReviewSource reviews;
+    /** if set, reviews have been tokenized in advance and batches are only gathered from these ids */
+    private final TokenIdCorpus tokenIds;
     private final TokenizerFactory tokenizerFactory;
 
+    /** workers that turn reviews into word vector rows, ahead of the cursor */
+    private final ExecutorService pool;
+    /** number of reviews past the current batch that workers may already be working on */
+    private final int lookahead;
+    /**
+     * rows of the reviews from cursor up to (excluding) submitted, in cursor order. Near the end of an epoch,
+     * positions from totalExamples() on are the first reviews of the next epoch, so its first batches are
+     * ready when it starts.
+     */
+    private final ArrayDeque<Future<int[]>> pending = new ArrayDeque<>();
+    private int submitted = 0;
+
+    /** optional batch plan, e.g. length bucketing; null to visit the reviews in index order */
+    private BatchSampler sampler;
+    private int epoch = 0;
+    /** with a sampler: the review index at each cursor position, and the cursor at the end of each batch */
+    private int[] order;
+    private int[] batchEnds;
+    private int planBatch;
+    /** with a sampler: the next epoch's plan, once workers have been given reviews of the next epoch */
+    private int[] nextOrder;
+    private int[] nextBatchEnds;
+    private final PaddingStats padding = new PaddingStats();
+    /** if set, features are word vector row ids instead of word vectors; see EmbeddingInput */
+    private boolean indexFeatures = false;
+    /** if set, wordVectors was acquired from the EmbeddingRegistry by this iterator, and shutdown releases it */
+    private boolean acquired = false;
+
     /**
      * @param dataDirectory the directory of the IMDB review data set
      * @param wordVectors WordVectors object
@@ -50,25 +96,119 @@ public class SentimentIterator implements DataSetIterator {
      * @param train If true: return the training data. If false: return the testing data.
      */
     public SentimentIterator(String dataDirectory, WordVectors wordVectors, int batchSize, int truncateLength, boolean train) throws IOException {
+        this(dataDirectory, wordVectors, batchSize, truncateLength, train, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param dataDirectory the directory of the IMDB review data set
+     * @param wordVectors WordVectors object
+     * @param batchSize Size of each minibatch for training
+     * @param truncateLength If reviews exceed
+     * @param train If true: return the training data. If false: return the testing data.
+     * @param buildThreads Number of threads reading and tokenizing reviews
+     */
+    public SentimentIterator(String dataDirectory, WordVectors wordVectors, int batchSize, int truncateLength, boolean train,
+                             int buildThreads) throws IOException {
+        this(new AclImdbDirectory(dataDirectory, train), wordVectors, batchSize, truncateLength, buildThreads);
+    }
+
+    /**
+     * @param reviews the reviews to iterate over, e.g. a PackedCorpus of the train or test set
+     * @param wordVectors WordVectors object
+     * @param batchSize Size of each minibatch for training
+     * @param truncateLength If reviews exceed
+     * @param buildThreads Number of threads reading and tokenizing reviews
+     */
+    public SentimentIterator(ReviewSource reviews, WordVectors wordVectors, int batchSize, int truncateLength, int buildThreads) {
+        if (buildThreads < 1) throw new IllegalArgumentException("buildThreads must be at least 1");
         this.batchSize = batchSize;
         this.vectorSize = wordVectors.lookupTable().layerSize();
-
-        File p = new File(FilenameUtils.concat(dataDirectory, "aclImdb/" + (train ? "train" : "test") + "/pos/") + "/");
-        File n = new File(FilenameUtils.concat(dataDirectory, "aclImdb/" + (train ? "train" : "test") + "/neg/") + "/");
-        positiveFiles = p.listFiles();
-        negativeFiles = n.listFiles();
+        this.reviews = reviews;
+        this.tokenIds = null;
 
         this.wordVectors = wordVectors;
+        this.table = WordVectorTable.of(wordVectors);
         this.truncateLength = truncateLength;
 
-        tokenizerFactory = new DefaultTokenizerFactory();
-        tokenizerFactory.setTokenPreProcessor(new CommonPreprocessor());
+        tokenizerFactory = TokenIdCorpus.newTokenizerFactory();
+
+        this.pool = Executors.newFixedThreadPool(buildThreads, new BuilderThreadFactory());
+        this.lookahead = 2 * batchSize;
+    }
+
+    /**
+     * Pre-tokenized mode: batches are only gathered from the word vector rows stored in tokenIds, with
+     * no reading or tokenizing at all. Reviews are truncated to the corpus' truncateLength.
+     *
+     * @param tokenIds token id corpus built from reviews with the same word vectors
+     * @param reviews the reviews the corpus was built from; used for labels and loadReviewToString
+     * @param wordVectors WordVectors object
+     * @param modelFingerprint fingerprint of the word vector file wordVectors was loaded from, see
+     *                         EmbeddingRegistry.fingerprint; must be the one the corpus was built with
+     * @param batchSize Size of each minibatch for training
+     */
+    public SentimentIterator(TokenIdCorpus tokenIds, ReviewSource reviews, WordVectors wordVectors,
+                             String modelFingerprint, int batchSize) {
+        this.batchSize = batchSize;
+        this.vectorSize = wordVectors.lookupTable().layerSize();
+        this.reviews = reviews;
+        this.tokenIds = tokenIds;
+
+        this.wordVectors = wordVectors;
+        this.table = WordVectorTable.of(wordVectors);
+        this.truncateLength = tokenIds.truncateLength();
+        if (tokenIds.size() != reviews.size()) {
+            throw new IllegalArgumentException("Token id corpus has " + tokenIds.size() + " reviews, source has " + reviews.size());
+        }
+        //Row ids are only meaningful for the model the corpus was built with; a model with the same vocabulary
+        //size would silently gather the wrong rows
+        if (!tokenIds.modelFingerprint().equals(modelFingerprint)) {
+            throw new IllegalArgumentException("Token id corpus was built with word vectors "
+                    + tokenIds.modelFingerprint() + ", not " + modelFingerprint);
+        }
+        if (tokenIds.vocabSize() != table.index().size()) {
+            throw new IllegalArgumentException("Token id corpus was built with a different word vector model");
+        }
+
+        tokenizerFactory = null;
+        this.pool = null;
+        this.lookahead = 0;
+    }
+
+
+    /**
+     * Same as above, but takes the word vectors from the shared EmbeddingRegistry, so iterators built
+     * on the same file (e.g. train and test) share one loaded model. shutdown releases the model.
+     *
+     * @param dataDirectory the directory of the IMDB review data set
+     * @param wordVectorsFile word vector file
+     * @param batchSize Size of each minibatch for training
+     * @param truncateLength If reviews exceed
+     * @param train If true: return the training data. If false: return the testing data.
+     */
+    public SentimentIterator(String dataDirectory, File wordVectorsFile, int batchSize, int truncateLength, boolean train) throws IOException {
+        this(dataDirectory, EmbeddingRegistry.getDefault().acquire(wordVectorsFile), batchSize, truncateLength, train);
+        acquired = true;
+    }
+
+    /**
+     * Same as above, for any source of reviews, e.g. a PackedCorpus.
+     *
+     * @param reviews the reviews to iterate over
+     * @param wordVectorsFile word vector file
+     * @param batchSize Size of each minibatch for training
+     * @param truncateLength If reviews exceed
+     */
+    public SentimentIterator(ReviewSource reviews, File wordVectorsFile, int batchSize, int truncateLength) throws IOException {
+        this(reviews, EmbeddingRegistry.getDefault().acquire(wordVectorsFile), batchSize, truncateLength,
+                Runtime.getRuntime().availableProcessors());
+        acquired = true;
     }
 
 
     @Override
     public DataSet next(int num) {
-        if (cursor >= positiveFiles.length + negativeFiles.length) throw new NoSuchElementException();
+        if (cursor >= totalExamples()) throw new NoSuchElementException();
         try{
             return nextDataSet(num);
         }catch(IOException e){
@@ -77,82 +217,110 @@ public class SentimentIterator implements DataSetIterator {
     }
 
     private DataSet nextDataSet(int num) throws IOException {
-        //First: load reviews to String. Alternate positive and negative reviews
-        List<String> reviews = new ArrayList<>(num);
-        boolean[] positive = new boolean[num];
-        for( int i=0; i<num && cursor<totalExamples(); i++ ){
-            if(cursor % 2 == 0){
-                //Load positive review
-                int posReviewNumber = cursor / 2;
-                String review = FileUtils.readFileToString(positiveFiles[posReviewNumber]);
-                reviews.add(review);
-                positive[i] = true;
-            } else {
-                //Load negative review
-                int negReviewNumber = cursor / 2;
-                String review = FileUtils.readFileToString(negativeFiles[negReviewNumber]);
-                reviews.add(review);
-                positive[i] = false;
-            }
-            cursor++;
-        }
-
-        //Second: tokenize reviews and filter out unknown words
-        List<List<String>> allTokens = new ArrayList<>(reviews.size());
+        //First: make sure the workers are on every review of this batch, and on the next few after it
+        int end = order == null ? Math.min(cursor + num, totalExamples()) : batchEnds[planBatch++];
+        if( tokenIds == null ) submitUpTo(Math.min(end + lookahead, 2 * totalExamples()));
+
+        //Second: collect the word vector rows of each review, in cursor order. Reviews alternate between
+        //positive and negative; unknown words have already been dropped by the workers (or when the
+        //token id corpus was built)
+        List<int[]> allRows = new ArrayList<>(end - cursor);
+        boolean[] positive = new boolean[end - cursor];
         int maxLength = 0;
-        for(String s : reviews){
-            List<String> tokens = tokenizerFactory.create(s).getTokens();
-            List<String> tokensFiltered = new ArrayList<>();
-            for(String t : tokens ){
-                if(wordVectors.hasWord(t)) tokensFiltered.add(t);
-            }
-            allTokens.add(tokensFiltered);
-            maxLength = Math.max(maxLength,tokensFiltered.size());
+        for( int i=0; cursor<end; i++, cursor++ ){
+            int index = indexAt(cursor);
+            int[] rows = tokenIds != null ? tokenIds.rows(index) : take(pending.poll());
+            allRows.add(rows);
+            positive[i] = isPositiveReview(index);
+            maxLength = Math.max(maxLength,rows.length);
         }
 
         //If longest review exceeds 'truncateLength': only take the first 'truncateLength' words
         if(maxLength > truncateLength) maxLength = truncateLength;
 
         //Create data for training
-        //Here: we have reviews.size() examples of varying lengths
-        INDArray features = Nd4j.create(reviews.size(), vectorSize, maxLength);
-        INDArray labels = Nd4j.create(reviews.size(), 2, maxLength);    //Two labels: positive or negative
+        //Here: we have allRows.size() examples of varying lengths
+        int n = allRows.size();
+        int length = Math.max(maxLength, 1);
+        int columns = inputColumns();
+        float[] features = new float[n * columns * length];        //[n, columns, length], 'c' order
+        float[] labels = new float[n * 2 * length];                //Two labels: positive or negative
         //Because we are dealing with reviews of different lengths and only one output at the final time step: use padding arrays
         //Mask arrays contain 1 if data is present at that time step for that example, or 0 if data is just padding
-        INDArray featuresMask = Nd4j.zeros(reviews.size(), maxLength);
-        INDArray labelsMask = Nd4j.zeros(reviews.size(), maxLength);
-
-        int[] temp = new int[2];
-        for( int i=0; i<reviews.size(); i++ ){
-            List<String> tokens = allTokens.get(i);
-            temp[0] = i;
-            //Get word vectors for each word in review, and put them in the training data
-            for( int j=0; j<tokens.size() && j<maxLength; j++ ){
-                String token = tokens.get(j);
-                INDArray vector = wordVectors.getWordVectorMatrix(token);
-                features.put(new INDArrayIndex[]{NDArrayIndex.point(i), NDArrayIndex.all(), NDArrayIndex.point(j)}, vector);
-
-                temp[1] = j;
-                featuresMask.putScalar(temp, 1.0);  //Word is present (not padding) for this example + time step -> 1.0 in features mask
+        float[] featuresMask = new float[n * length];
+        float[] labelsMask = new float[n * length];
+        int[] lengths = new int[n];
+
+        for( int i=0; i<n; i++ ){
+            int[] rows = allRows.get(i);
+            int lastIdx = Math.min(rows.length,maxLength);
+            lengths[i] = lastIdx;
+            //Copy the word vector of each word in the review straight into the training data, or just its row id
+            for( int j=0; j<lastIdx; j++ ){
+                if( indexFeatures ){
+                    features[i * length + j] = rows[j];
+                } else {
+                    for( int k=0; k<vectorSize; k++ ){
+                        features[(i * vectorSize + k) * length + j] = table.get(rows[j], k);
+                    }
+                }
+                featuresMask[i * length + j] = 1f;  //Word is present (not padding) for this example + time step -> 1.0 in features mask
             }
 
-            int idx = (positive[i] ? 0 : 1);
-            int lastIdx = Math.min(tokens.size(),maxLength);
-            labels.putScalar(new int[]{i,idx,lastIdx-1},1.0);   //Set label: [0,1] for negative, [1,0] for positive
-            labelsMask.putScalar(new int[]{i,lastIdx-1},1.0);   //Specify that an output exists at the final time step for this example
+            if( lastIdx > 0 ){
+                int idx = (positive[i] ? 0 : 1);
+                labels[(i * 2 + idx) * length + lastIdx - 1] = 1f;   //Set label: [0,1] for negative, [1,0] for positive
+                labelsMask[i * length + lastIdx - 1] = 1f;           //Specify that an output exists at the final time step for this example
+            }
         }
 
-        return new DataSet(features,labels,featuresMask,labelsMask);
+        padding.record(lengths, n, length);
+        return new DataSet(Nd4j.create(features, new int[]{n, columns, length}),
+                Nd4j.create(labels, new int[]{n, 2, length}),
+                Nd4j.create(featuresMask, new int[]{n, length}),
+                Nd4j.create(labelsMask, new int[]{n, length}));
+    }
+
+    /** Hands the reviews up to (excluding) index 'end' to the workers */
+    private void submitUpTo(int end) {
+        for( ; submitted < end; submitted++ ){
+            final int index = indexAt(submitted);
+            pending.add(pool.submit(new Callable<int[]>() {
+                @Override
+                public int[] call() throws IOException {
+                    return tokenRows(index);
+                }
+            }));
+        }
+    }
+
+    /** Waits for a worker's result */
+    private static int[] take(Future<int[]> rows) throws IOException {
+        try {
+            return rows.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a review", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw new IOException("Could not load review", e.getCause());
+        }
+    }
+
+    /** Reads a review, tokenizes it and resolves each known word to its row in the word vector table.
+     * Unknown words are dropped; one probe of the vocabulary index per token. Runs on a worker thread */
+    private int[] tokenRows(int index) throws IOException {
+        return TokenIdCorpus.tokenRows(tokenizerFactory, table, loadReviewToString(index), Integer.MAX_VALUE);
     }
 
     @Override
     public int totalExamples() {
-        return positiveFiles.length + negativeFiles.length;
+        return reviews.size();
     }
 
     @Override
     public int inputColumns() {
-        return vectorSize;
+        return indexFeatures ? 1 : vectorSize;
     }
 
     @Override
@@ -160,9 +328,144 @@ public class SentimentIterator implements DataSetIterator {
         return 2;
     }
 
+    /**
+     * Starts the next epoch, with a new plan if there is a sampler. Does nothing at the start of an epoch.
+     * At the end of an epoch, the workers keep the reviews of the next epoch they are already working on.
+     */
     @Override
     public void reset() {
+        if( cursor == 0 ) return;
+        System.out.println("Epoch " + epoch + ": " + padding.summary());
+        padding.reset();
+        epoch++;
+        if( cursor == totalExamples() ){
+            submitted -= cursor;
+            cursor = 0;
+        } else {
+            cursor = 0;
+            cancelPending();
+        }
+        plan();
+    }
+
+    /**
+     * Sets how reviews are grouped into batches, e.g. a LengthBucketSampler to cut padding. With a sampler,
+     * every batch is the next one of the sampler's plan for the current epoch (the num argument of next(num)
+     * is ignored), and a new plan is made at every reset. Restarts the current epoch.
+     *
+     * @param sampler batch sampler over the review indexes, or null for batches in index order
+     */
+    public void setBatchSampler(BatchSampler sampler) {
+        this.sampler = sampler;
         cursor = 0;
+        cancelPending();
+        nextOrder = null;
+        plan();
+    }
+
+    /**
+     * Starts an epoch other than the next one, e.g. to resume training from a checkpoint: with a sampler,
+     * the batches are those of that epoch's plan.
+     *
+     * @param epoch epoch to start
+     */
+    public void setEpoch(int epoch) {
+        this.epoch = epoch;
+        cursor = 0;
+        cancelPending();
+        nextOrder = null;
+        padding.reset();
+        plan();
+    }
+
+    /**
+     * Switches the features between word vector sequences, [batch, vectorSize, time], and word vector row id
+     * sequences, [batch, 1, time], for a network that starts with an EmbeddingInput layer seeded from the
+     * same word vectors. Masks and labels are the same either way. Row ids are stored as floats, which is
+     * exact for vocabularies of up to 2^24 words.
+     *
+     * @param indexFeatures true for row ids, false for word vectors
+     */
+    public void setIndexFeatures(boolean indexFeatures) {
+        this.indexFeatures = indexFeatures;
+    }
+
+    /** @return word vectors the row ids refer to, e.g. to seed an EmbeddingInput layer */
+    public WordVectorTable table() {
+        return table;
+    }
+
+    /** @return padding efficiency of the batches of the current epoch so far */
+    public PaddingStats paddingStats() {
+        return padding;
+    }
+
+    /** Switches to the plan of the current epoch; the one computed ahead of time, if any */
+    private void plan() {
+        planBatch = 0;
+        if( sampler == null ){
+            order = null;
+            batchEnds = null;
+        } else if( nextOrder != null ){
+            order = nextOrder;
+            batchEnds = nextBatchEnds;
+        } else {
+            int[][] plan = planOf(epoch);
+            order = plan[0];
+            batchEnds = plan[1];
+        }
+        nextOrder = null;
+        nextBatchEnds = null;
+    }
+
+    /** @return the sampler's plan for an epoch, as {review index at each cursor position, cursor at the end of each batch} */
+    private int[][] planOf(int epoch) {
+        List<int[]> batches = sampler.batches(epoch);
+        int[] order = new int[totalExamples()];
+        int[] batchEnds = new int[batches.size()];
+        int p = 0;
+        for( int b=0; b<batches.size(); b++ ){
+            for( int index : batches.get(b) ){
+                order[p++] = index;
+            }
+            batchEnds[b] = p;
+        }
+        if( p != order.length ) throw new IllegalStateException("Batch plan covers " + p + " of " + order.length + " reviews");
+        return new int[][]{order, batchEnds};
+    }
+
+    /** @return the review at a cursor position; positions from totalExamples() on are in the next epoch */
+    private int indexAt(int position) {
+        int total = totalExamples();
+        if( position < total ) return order == null ? position : order[position];
+        if( sampler == null ) return position - total;
+        if( nextOrder == null ){
+            int[][] plan = planOf(epoch + 1);
+            nextOrder = plan[0];
+            nextBatchEnds = plan[1];
+        }
+        return nextOrder[position - total];
+    }
+
+    /**
+     * Stops the worker threads, and releases the word vectors if this iterator acquired them from the
+     * EmbeddingRegistry. The iterator cannot be used afterwards
+     */
+    public void shutdown() {
+        cancelPending();
+        if( pool != null ) pool.shutdownNow();
+        if( acquired ){
+            acquired = false;
+            EmbeddingRegistry.getDefault().release(wordVectors);
+        }
+    }
+
+    private void cancelPending() {
+        for( Future<int[]> f : pending ){
+            f.cancel(true);
+        }
+        pending.clear();
+        submitted = cursor;
     }
 
     @Override
@@ -207,15 +510,25 @@ public class SentimentIterator implements DataSetIterator {
 
     /** Convenience method for loading review to String */
     public String loadReviewToString(int index) throws IOException{
-        File f;
-        if(index%2 == 0) f = positiveFiles[index/2];
-        else f = negativeFiles[index/2];
-        return FileUtils.readFileToString(f);
+        return reviews.text(index);
     }
 
     /** Convenience method to get label for review */
     public boolean isPositiveReview(int index){
-        return index%2 == 0;
+        return reviews.polarity(index) == 1;
     }
 
+
+    private static class BuilderThreadFactory implements ThreadFactory {
+        private static final AtomicInteger poolNumber = new AtomicInteger();
+        private final int pool = poolNumber.incrementAndGet();
+        private final AtomicInteger threadNumber = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "sentiment-" + pool + "-" + threadNumber.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
 }
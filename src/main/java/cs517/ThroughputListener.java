@@ -0,0 +1,280 @@
+package cs517;
+
+import cs517.data.TimedDataSetIterator;
+import org.deeplearning4j.nn.api.Model;
+import org.deeplearning4j.optimize.api.IterationListener;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Records where training time goes: examples and time steps per second, the time the trainer waits for
+ * batches, the time the network takes on each batch, garbage collections and the heap allocation rate. Every
+ * reportSeconds, the figures of the interval are appended to a CSV file and shown over JMX (see
+ * ThroughputMXBean), so runs of MainProgram and Word2VecRNN can be compared side by side.
+ * <p>
+ * The batches must come through a TimedDataSetIterator: the wait time is measured there, and the time
+ * on a batch runs from its handout to the end of the iteration. An IterationListener is only called once
+ * the parameters have been updated, so that time covers the forward pass, the backward pass and the update
+ * together. The allocation rate only counts the JVM heap; ND4J arrays live off the heap.
+ * <p>
+ * With ParallelTrainer, the listener is called by the first replica: the times on a batch are that
+ * replica's, the counts and rates are those of all replicas.
+ * <p>
+ * Usage:
+ * <p>
+ * TimedDataSetIterator timedTrain = new TimedDataSetIterator(train);
+ * ThroughputListener throughput = new ThroughputListener("train", timedTrain, new File("throughput.csv"), 10);
+ * net.setListeners(throughput);
+ * net.fit(timedTrain);
+ * throughput.close();
+ */
+public class ThroughputListener implements IterationListener, ThroughputMXBean {
+
+    private static final long serialVersionUID = 1L;
+    private static final String HEADER = "time_s,iterations,batches,examples,time_steps,examples_per_s,time_steps_per_s,"
+            + "wait_ms_per_batch,fit_ms_per_batch,gc_count,gc_ms,alloc_mb_per_s";
+
+    private final transient TimedDataSetIterator data;
+    private final long reportNanos;
+    private final transient PrintWriter csv;
+    private transient ObjectName objectName;
+    private boolean invoked;
+
+    private final long startNanos = System.nanoTime();
+    private long iterations;
+    private long fitted;
+    private long fitNanos;
+
+    /** totals at the start of the current interval */
+    private long intervalNanos = startNanos;
+    private long intervalBatches;
+    private long intervalExamples;
+    private long intervalTimeSteps;
+    private long intervalWaitNanos;
+    private long intervalFitted;
+    private long intervalFitNanos;
+    private long intervalGcCount;
+    private long intervalGcMillis;
+    private long intervalAllocated;
+
+    /** figures of the last reported interval */
+    private double examplesPerSecond;
+    private double timeStepsPerSecond;
+    private double waitMillisPerBatch;
+    private double fitMillisPerBatch;
+    private double allocatedMegabytesPerSecond;
+
+
+    /**
+     * @param name          name of the run, shown in JMX as cs517:type=Throughput,name=...
+     * @param data          the iterator the network is trained on
+     * @param csvFile       file the intervals are appended to; its directory is created if missing
+     * @param reportSeconds length of the intervals
+     * @throws IOException if the CSV file cannot be opened
+     */
+    public ThroughputListener(String name, TimedDataSetIterator data, File csvFile, double reportSeconds) throws IOException {
+        this.data = data;
+        this.reportNanos = (long) (reportSeconds * 1e9);
+        File dir = csvFile.getAbsoluteFile().getParentFile();
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        boolean fresh = !csvFile.exists() || csvFile.length() == 0;
+        csv = new PrintWriter(new FileWriter(csvFile, true));
+        if (fresh) {
+            csv.println(HEADER);
+            csv.flush();
+        }
+        intervalGcCount = gcCount();
+        intervalGcMillis = gcMillis();
+        intervalAllocated = allocatedBytes();
+
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            objectName = new ObjectName("cs517:type=Throughput,name=" + ObjectName.quote(name));
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+            server.registerMBean(this, objectName);
+        } catch (JMException e) {
+            System.out.println("ThroughputListener: not shown over JMX");
+            e.printStackTrace();
+            objectName = null;
+        }
+    }
+
+    @Override
+    public boolean invoked() {
+        return invoked;
+    }
+
+    @Override
+    public void invoke() {
+        invoked = true;
+    }
+
+    @Override
+    public synchronized void iterationDone(Model model, int iteration) {
+        invoke();
+        long now = System.nanoTime();
+        long handout = data.lastBatchNanos();
+        if (handout > 0) {
+            fitNanos += now - handout;
+            fitted++;
+        }
+        iterations++;
+        if (now - intervalNanos >= reportNanos) {
+            report(now);
+        }
+    }
+
+    /** Appends the interval up to now to the CSV file, and starts the next one */
+    private void report(long now) {
+        long batches = data.batches();
+        long examples = data.examples();
+        long timeSteps = data.timeSteps();
+        long waitNanos = data.waitNanos();
+        long gcCount = gcCount();
+        long gcMillis = gcMillis();
+        long allocated = allocatedBytes();
+
+        double seconds = (now - intervalNanos) / 1e9;
+        long b = batches - intervalBatches;
+        long f = fitted - intervalFitted;
+        examplesPerSecond = (examples - intervalExamples) / seconds;
+        timeStepsPerSecond = (timeSteps - intervalTimeSteps) / seconds;
+        waitMillisPerBatch = b == 0 ? 0.0 : (waitNanos - intervalWaitNanos) / 1e6 / b;
+        fitMillisPerBatch = f == 0 ? 0.0 : (fitNanos - intervalFitNanos) / 1e6 / f;
+        allocatedMegabytesPerSecond = allocated < 0 ? -1 : Math.max(0, allocated - intervalAllocated) / 1e6 / seconds;
+
+        csv.println(String.format("%.3f,%d,%d,%d,%d,%.1f,%.1f,%.3f,%.3f,%d,%d,%.1f",
+                (now - startNanos) / 1e9, iterations, batches, examples, timeSteps, examplesPerSecond, timeStepsPerSecond,
+                waitMillisPerBatch, fitMillisPerBatch, gcCount - intervalGcCount, gcMillis - intervalGcMillis,
+                allocatedMegabytesPerSecond));
+        csv.flush();
+
+        intervalNanos = now;
+        intervalBatches = batches;
+        intervalExamples = examples;
+        intervalTimeSteps = timeSteps;
+        intervalWaitNanos = waitNanos;
+        intervalFitted = fitted;
+        intervalFitNanos = fitNanos;
+        intervalGcCount = gcCount;
+        intervalGcMillis = gcMillis;
+        intervalAllocated = allocated;
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static long gcMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            millis += Math.max(0, gc.getCollectionTime());
+        }
+        return millis;
+    }
+
+    /** @return bytes allocated on the heap by the live threads, or -1 if the JVM does not count them */
+    private static long allocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+            return -1;
+        }
+        long total = 0;
+        for (long bytes : ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(threads.getAllThreadIds())) {
+            total += Math.max(0, bytes);
+        }
+        return total;
+    }
+
+    /**
+     * @return one-line summary since the listener was made
+     */
+    public synchronized String summary() {
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        long batches = data.batches();
+        return String.format("Throughput: %d examples in %.1f s (%.1f examples/s, %.1f time steps/s), "
+                        + "waiting %.2f ms and fitting %.2f ms per batch",
+                data.examples(), seconds, data.examples() / seconds, data.timeSteps() / seconds,
+                batches == 0 ? 0.0 : data.waitNanos() / 1e6 / batches, fitted == 0 ? 0.0 : fitNanos / 1e6 / fitted);
+    }
+
+    /**
+     * Reports the last, partial interval, closes the CSV file and removes the listener from JMX.
+     */
+    public synchronized void close() {
+        if (data.batches() > intervalBatches) {
+            report(System.nanoTime());
+        }
+        csv.close();
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (JMException e) {
+                e.printStackTrace();
+            }
+            objectName = null;
+        }
+    }
+
+    @Override
+    public synchronized double getExamplesPerSecond() {
+        return examplesPerSecond;
+    }
+
+    @Override
+    public synchronized double getTimeStepsPerSecond() {
+        return timeStepsPerSecond;
+    }
+
+    @Override
+    public synchronized double getWaitMillisPerBatch() {
+        return waitMillisPerBatch;
+    }
+
+    @Override
+    public synchronized double getFitMillisPerBatch() {
+        return fitMillisPerBatch;
+    }
+
+    @Override
+    public long getGcCount() {
+        return gcCount();
+    }
+
+    @Override
+    public long getGcMillis() {
+        return gcMillis();
+    }
+
+    @Override
+    public synchronized double getAllocatedMegabytesPerSecond() {
+        return allocatedMegabytesPerSecond;
+    }
+
+    @Override
+    public synchronized long getIterations() {
+        return iterations;
+    }
+
+    @Override
+    public long getExamples() {
+        return data.examples();
+    }
+}
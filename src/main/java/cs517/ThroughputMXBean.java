@@ -0,0 +1,35 @@
+package cs517;
+
+/**
+ * What a ThroughputListener shows over JMX, e.g. in JConsole or VisualVM under cs517:type=Throughput.
+ * Rates and per-batch times are those of the last reporting interval; the rest are totals.
+ */
+public interface ThroughputMXBean {
+
+    /** @return examples per second */
+    double getExamplesPerSecond();
+
+    /** @return unmasked time steps (tokens or sentences) per second */
+    double getTimeStepsPerSecond();
+
+    /** @return mean time the trainer waited for a batch, in milliseconds */
+    double getWaitMillisPerBatch();
+
+    /** @return mean time the network took on a batch (forward, backward and update), in milliseconds */
+    double getFitMillisPerBatch();
+
+    /** @return number of garbage collections since the JVM started */
+    long getGcCount();
+
+    /** @return time spent in garbage collections since the JVM started, in milliseconds */
+    long getGcMillis();
+
+    /** @return heap allocation rate of the live threads, in megabytes per second, or -1 if not supported */
+    double getAllocatedMegabytesPerSecond();
+
+    /** @return total number of iterations */
+    long getIterations();
+
+    /** @return total number of examples */
+    long getExamples();
+}
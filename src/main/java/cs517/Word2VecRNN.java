@@ -1,14 +1,19 @@
 package cs517;
 
+import cs517.data.AclImdbDirectory;
+import cs517.data.EmbeddingRegistry;
+import cs517.data.LengthBucketSampler;
+import cs517.data.PackedCorpus;
+import cs517.data.PrefetchingIterator;
+import cs517.data.TimedDataSetIterator;
+import cs517.data.TokenIdCorpus;
+import cs517.data.WordVectorTable;
 import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
 import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
 import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.FilenameUtils;
-import org.deeplearning4j.datasets.iterator.AsyncDataSetIterator;
-import org.deeplearning4j.datasets.iterator.DataSetIterator;
 import org.deeplearning4j.eval.Evaluation;
-import org.deeplearning4j.models.embeddings.loader.WordVectorSerializer;
 import org.deeplearning4j.models.embeddings.wordvectors.WordVectors;
 import org.deeplearning4j.nn.api.OptimizationAlgorithm;
 import org.deeplearning4j.nn.conf.GradientNormalization;
@@ -21,12 +26,11 @@ import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
 import org.deeplearning4j.nn.weights.WeightInit;
 import org.deeplearning4j.optimize.listeners.ScoreIterationListener;
 import org.deeplearning4j.ui.weights.HistogramIterationListener;
-import org.nd4j.linalg.api.ndarray.INDArray;
-import org.nd4j.linalg.dataset.DataSet;
 import org.nd4j.linalg.lossfunctions.LossFunctions;
 
 import java.io.*;
 import java.net.URL;
+import java.util.Arrays;
 
 /**
  * Created by Renita on 6/5/16.
@@ -49,73 +53,162 @@ class Word2VecRNN {
         int vectorSize = 100;   //Size of the word vectors. 300 in the Google News model
         int nEpochs = 2;        //Number of epochs (full passes of training data) to train on
         int truncateReviewsToLength = 300;  //Truncate reviews with length (# words) greater than this
+        long seed = 12345;      //Seed of the per-epoch batch shuffles
+        boolean indexInput = true;  //Feed word vector row ids to a frozen embedding layer instead of word vectors
 
         System.out.println(DATA_PATH);
 
+        //Word vectors are loaded once through the EmbeddingRegistry and shared by both iterators
+        //Reviews are read from packed corpus files instead of 50k small files, and tokenized once into token id
+        //files, so each epoch only gathers word vectors
+        File wordVectorsFile = new File(WORD_VECTORS_PATH);
+        WordVectors wordVectors = EmbeddingRegistry.getDefault().acquire(wordVectorsFile);
+        WordVectorTable table = WordVectorTable.of(wordVectors);
+        PackedCorpus trainReviews = packedCorpus(true);
+        PackedCorpus testReviews = packedCorpus(false);
+
         //Set up network configuration
-        MultiLayerConfiguration conf = new NeuralNetConfiguration.Builder()
+        //With indexInput, layer 0 looks up the word vectors of the row ids, and the LSTMs follow it
+        NeuralNetConfiguration.ListBuilder layers = new NeuralNetConfiguration.Builder()
                 .optimizationAlgo(OptimizationAlgorithm.STOCHASTIC_GRADIENT_DESCENT).iterations(1)
                 .updater(Updater.RMSPROP)
                 .regularization(true).l2(1e-5)
                 .weightInit(WeightInit.XAVIER)
                 .gradientNormalization(GradientNormalization.ClipElementWiseAbsoluteValue).gradientNormalizationThreshold(1.0)
                 .learningRate(0.0018)
-                .list()
-                .layer(0, new GravesLSTM.Builder().nIn(vectorSize).nOut(50)
+                .list();
+        int first = 0;
+        if( indexInput ) layers.layer(first++, EmbeddingInput.layer(table));
+        layers.layer(first, new GravesLSTM.Builder().nIn(vectorSize).nOut(50)
                         .activation("softsign").build())
-                .layer(1, new GravesLSTM.Builder().nIn(50).nOut(50)
+                .layer(first + 1, new GravesLSTM.Builder().nIn(50).nOut(50)
                         .activation("tanh").build())
-                .layer(2, new RnnOutputLayer.Builder().activation("softmax")
-                        .lossFunction(LossFunctions.LossFunction.MCXENT).nIn(50).nOut(2).build())
+                .layer(first + 2, new RnnOutputLayer.Builder().activation("softmax")
+                        .lossFunction(LossFunctions.LossFunction.MCXENT).nIn(50).nOut(2).build());
 //            .layer(1, new RnnOutputLayer.Builder().activation("softmax")
 //                .lossFunction(LossFunctions.LossFunction.MCXENT).nIn(50).nOut(2).build())
-                .pretrain(false).backprop(true).build();
+        MultiLayerConfiguration.Builder builder = layers.pretrain(false).backprop(true);
+        if( indexInput ) EmbeddingInput.addPreProcessors(builder, 0);
+        MultiLayerConfiguration conf = builder.build();
 
 
         MultiLayerNetwork net = new MultiLayerNetwork(conf);
         net.init();
-        net.setListeners(new ScoreIterationListener(1));
+        if( indexInput ) EmbeddingInput.seed(net, 0, table);
+
+        //A checkpoint is saved after every epoch; with --resume, a run that was stopped resumes after the latest
+        //one, provided the network, word vectors, reviews and batching are unchanged
+        boolean resume = Arrays.asList(args).contains("--resume");
+        EmbeddingRegistry registry = EmbeddingRegistry.getDefault();
+        String modelFingerprint = registry.fingerprint(wordVectorsFile);
+        CheckpointManager checkpoints = new CheckpointManager(new File(DATA_PATH, "checkpoints"), 3,
+                CheckpointManager.fingerprint(conf, modelFingerprint,
+                        registry.fingerprint(trainReviews.file()), registry.fingerprint(testReviews.file()),
+                        "batchSize=" + batchSize, "truncate=" + truncateReviewsToLength));
+        CheckpointManager.Checkpoint latest = resume ? checkpoints.latest() : null;
+        if( !resume ){
+            int cleared = checkpoints.clear();
+            if( cleared > 0 ) System.out.println("Starting over: deleted " + cleared + " checkpoints (pass --resume to resume)");
+        }
+        int firstEpoch = 0;
+        if( latest != null ){
+            latest.restoreInto(net);
+            seed = latest.seed();
+            firstEpoch = latest.epoch() + 1;
+            System.out.println("Resuming after epoch " + latest.epoch() + " from " + latest.file());
+        }
 
         //DataSetIterators for training and testing respectively
-        //Using AsyncDataSetIterator to do data loading in a separate thread; this may improve performance vs. waiting for data to load
+        //Using PrefetchingIterator to prepare batches in separate threads, a few batches ahead of the network
 
-        //WordVectors wordVectors = WordVectorSerializer.loadGoogleModel(new File(WORD_VECTORS_PATH), true, false);
-        WordVectors wordVectors = WordVectorSerializer.loadTxtVectors(new File(WORD_VECTORS_PATH));
+        //Training batches group reviews of similar length, so less of each batch is padding
+        TokenIdCorpus trainIds = tokenIdCorpus(trainReviews,wordVectorsFile,truncateReviewsToLength);
+        SentimentIterator trainIterator = new SentimentIterator(trainIds,trainReviews,wordVectors,modelFingerprint,batchSize);
+        trainIterator.setBatchSampler(new LengthBucketSampler(trainIds.lengths(),batchSize,seed));
+        trainIterator.setIndexFeatures(indexInput);
+        trainIterator.setEpoch(firstEpoch);     //before the prefetching starts
+        PrefetchingIterator prefetchedTrain = new PrefetchingIterator(trainIterator,2,8,256L << 20);
+        TimedDataSetIterator train = new TimedDataSetIterator(prefetchedTrain);
+        SentimentIterator testIterator = new SentimentIterator(
+                tokenIdCorpus(testReviews,wordVectorsFile,truncateReviewsToLength),testReviews,wordVectors,modelFingerprint,100);
+        testIterator.setIndexFeatures(indexInput);
+        PrefetchingIterator test = new PrefetchingIterator(testIterator,2,8,256L << 20);
 
-        DataSetIterator train = new AsyncDataSetIterator(new SentimentIterator(DATA_PATH,wordVectors,batchSize,truncateReviewsToLength,true),1);
-        DataSetIterator test = new AsyncDataSetIterator(new SentimentIterator(DATA_PATH,wordVectors,100,truncateReviewsToLength,false),1);
 
+        //Throughput, batch wait and fit times, GC and allocation go to a CSV file and to JMX every 10 seconds
+        ThroughputListener throughput = new ThroughputListener("Word2VecRNN",train,
+                new File(DATA_PATH,"throughput-Word2VecRNN.csv"),10);
+        net.setListeners(new ScoreIterationListener(1),new HistogramIterationListener(2),throughput);
 
-        net.setListeners(new HistogramIterationListener(2));
 
+        //The LSTM is too small to keep several cores busy, so replicas of it train on different batches
+        ParallelTrainer trainer = new ParallelTrainer(net,Runtime.getRuntime().availableProcessors(),5);
+        ParallelEvaluator evaluator = new ParallelEvaluator(Runtime.getRuntime().availableProcessors());
 
         System.out.println("Starting training");
-        for( int i=0; i<nEpochs; i++ ){
-            net.fit(train);
+        for( int i=firstEpoch; i<nEpochs; i++ ){
+            trainer.fit(train);
             train.reset();
+            System.out.println(trainer.summary());
+            System.out.println(throughput.summary());
+            System.out.println(prefetchedTrain.summary());
+            prefetchedTrain.resetStats();
+            checkpoints.save(net, i, seed);
             System.out.println("Epoch " + i + " complete. Starting evaluation:");
 
-            //Run evaluation. This is on 25k reviews, so can take some time
-            Evaluation evaluation = new Evaluation();
-            while(test.hasNext()){
-                DataSet t = test.next();
-                INDArray features = t.getFeatureMatrix();
-                INDArray lables = t.getLabels();
-                INDArray inMask = t.getFeaturesMaskArray();
-                INDArray outMask = t.getLabelsMaskArray();
-                INDArray predicted = net.output(features,false,inMask,outMask);
-
-                evaluation.evalTimeSeries(lables,predicted,outMask);
-            }
-            test.reset();
+            //Run evaluation. This is on 25k reviews, so it is spread over several threads
+            Evaluation evaluation = evaluator.evaluate(net, test);
+            System.out.println(evaluator.summary());
 
             System.out.println(evaluation.stats());
         }
 
 
+        throughput.close();
+        trainer.shutdown();
+        evaluator.shutdown();
+        checkpoints.shutdown();
+        prefetchedTrain.shutdown();
+        test.shutdown();
+        trainIterator.shutdown();
+        testIterator.shutdown();
+        EmbeddingRegistry.getDefault().release(wordVectors);
+        System.out.println(checkpoints.summary());
         System.out.println("----- Example complete -----");
     }
 
+    /** Packs the extracted train or test reviews into a single file, the first time only, and maps it */
+    private static PackedCorpus packedCorpus(boolean train) throws IOException {
+        File packed = new File(DATA_PATH, "aclImdb-" + (train ? "train" : "test") + ".pack");
+        if( !packed.exists() ){
+            File tmp = new File(packed.getPath() + ".tmp");
+            int n = PackedCorpus.pack(new AclImdbDirectory(DATA_PATH, train), tmp);
+            if( !tmp.renameTo(packed) ) throw new IOException("Could not rename " + tmp + " to " + packed);
+            System.out.println("Packed " + n + " reviews into " + packed.getAbsolutePath());
+        }
+        return PackedCorpus.open(packed);
+    }
+
+    /** Tokenizes a packed corpus into a token id file for the given word vectors, the first time only */
+    private static TokenIdCorpus tokenIdCorpus(PackedCorpus reviews, File wordVectorsFile, int truncateLength) throws IOException {
+        EmbeddingRegistry registry = EmbeddingRegistry.getDefault();
+        String fingerprint = registry.fingerprint(wordVectorsFile);
+        String base = FilenameUtils.removeExtension(reviews.file().getPath());
+        File ids = new File(base + "-" + fingerprint.substring(0, 16) + "-t" + truncateLength + ".ids");
+        if( !ids.exists() ){
+            WordVectors wordVectors = registry.acquire(wordVectorsFile);
+            try {
+                File tmp = new File(ids.getPath() + ".tmp");
+                long n = TokenIdCorpus.build(reviews, WordVectorTable.of(wordVectors), fingerprint, truncateLength, tmp);
+                if( !tmp.renameTo(ids) ) throw new IOException("Could not rename " + tmp + " to " + ids);
+                System.out.println("Stored " + n + " token ids in " + ids.getAbsolutePath());
+            } finally {
+                registry.release(wordVectors);
+            }
+        }
+        return TokenIdCorpus.open(ids);
+    }
+
     private static void downloadData() throws Exception {
         //Create directory if required
         File directory = new File(DATA_PATH);
@@ -0,0 +1,83 @@
+package cs517.data;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.FilenameUtils;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * The extracted aclImdb data set, read one small file per review. Positive and negative reviews alternate
+ * (even indexes are positive, odd ones negative), in the order the files are listed. If one side has more
+ * reviews, its extra reviews come last.
+ * <p>
+ * Every review costs an open and a read, which is slow on cold or network disks; pack the directory with
+ * {@link PackedCorpus#pack(ReviewSource, File)} for repeated use.
+ */
+public final class AclImdbDirectory implements ReviewSource {
+
+    private final File[] positiveFiles;
+    private final File[] negativeFiles;
+
+
+    /**
+     * @param dataDirectory directory the aclImdb archive was extracted into
+     * @param train         if true, the train split, otherwise the test split
+     */
+    public AclImdbDirectory(String dataDirectory, boolean train) throws IOException {
+        File p = new File(FilenameUtils.concat(dataDirectory, "aclImdb/" + (train ? "train" : "test") + "/pos/") + "/");
+        File n = new File(FilenameUtils.concat(dataDirectory, "aclImdb/" + (train ? "train" : "test") + "/neg/") + "/");
+        positiveFiles = p.listFiles();
+        negativeFiles = n.listFiles();
+        if (positiveFiles == null || negativeFiles == null) {
+            throw new IOException("No aclImdb data in " + dataDirectory);
+        }
+    }
+
+    @Override
+    public int size() {
+        return positiveFiles.length + negativeFiles.length;
+    }
+
+    @Override
+    public String id(int index) {
+        return FilenameUtils.getBaseName(file(index).getName());
+    }
+
+    @Override
+    public String text(int index) throws IOException {
+        return FileUtils.readFileToString(file(index));
+    }
+
+    @Override
+    public int polarity(int index) {
+        int pairs = Math.min(positiveFiles.length, negativeFiles.length);
+        if (index < 2 * pairs) {
+            return index % 2 == 0 ? 1 : 0;
+        }
+        return positiveFiles.length > negativeFiles.length ? 1 : 0;
+    }
+
+    /**
+     * @return the score in the file name, e.g. 8 for "123_8.txt", or 0 if the name has no score
+     */
+    @Override
+    public int score(int index) {
+        String id = id(index);
+        int underscore = id.lastIndexOf('_');
+        try {
+            return underscore < 0 ? 0 : Integer.parseInt(id.substring(underscore + 1));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private File file(int index) {
+        int pairs = Math.min(positiveFiles.length, negativeFiles.length);
+        if (index < 2 * pairs) {
+            return index % 2 == 0 ? positiveFiles[index / 2] : negativeFiles[index / 2];
+        }
+        int extra = index - pairs;
+        return positiveFiles.length > negativeFiles.length ? positiveFiles[extra] : negativeFiles[extra];
+    }
+}
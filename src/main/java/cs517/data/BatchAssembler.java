@@ -0,0 +1,169 @@
+package cs517.data;
+
+import org.nd4j.linalg.api.buffer.DataBuffer;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.factory.Nd4j;
+
+/**
+ * Builds time series mini-batches from sentence-vector matrices into preallocated, recycled buffers.
+ * <p>
+ * The assembler owns a small ring of buffer sets (two by default, i.e. double buffering). Every batch goes
+ * into the next set of the ring, and the arrays of the returned DataSet are 'f' order views over that set,
+ * shaped from the batch itself:
+ *      features        [examples, vectorSize, T]
+ *      labels          [examples, nClasses, T]
+ *      masks           [examples, T]
+ * where T is the length of the longest review in the batch. Buffers only grow, so after the first few
+ * batches no memory is allocated at all. Values are written directly at their strided offsets, with no
+ * transposes, NDArrayIndex puts or temporary arrays.
+ * <p>
+ * Since buffers are recycled, a DataSet stays valid only until depth - 1 more batches have been assembled.
+ * That is fine for MultiLayerNetwork.fit and for evaluation loops, which are done with a batch before
+ * asking for the next one; callers that hold on to batches (e.g. a prefetching queue) need a deeper ring
+ * or must dup() the DataSet.
+ */
+final class BatchAssembler {
+
+    static final int DEFAULT_DEPTH = 2;
+
+    private final int vectorSize;
+    private final int nClasses;
+    private final Slot[] ring;
+    private int nextSlot;
+    private int allocations;
+
+
+    /**
+     * One set of buffers. Capacities are in elements.
+     */
+    private static final class Slot {
+        DataBuffer features;
+        DataBuffer labels;
+        DataBuffer featuresMask;
+        DataBuffer labelsMask;
+        int exampleTimeCapacity;   // capacity of the masks, i.e. examples x T
+    }
+
+    /**
+     * @param vectorSize size of the sentence vectors
+     * @param nClasses   number of label classes
+     * @param depth      number of buffer sets in the ring, at least 1
+     */
+    BatchAssembler(int vectorSize, int nClasses, int depth) {
+        if (depth < 1) {
+            throw new IllegalArgumentException("depth must be at least 1");
+        }
+        this.vectorSize = vectorSize;
+        this.nClasses = nClasses;
+        this.ring = new Slot[depth];
+        for (int i = 0; i < depth; i++) {
+            ring[i] = new Slot();
+        }
+    }
+
+    /**
+     * Assembles one mini-batch. Each review's label is placed at its last time step, and both masks are
+     * set per example: the features mask covers the review's sentences, the labels mask only its last one.
+     *
+     * @param reviews [sentences x vectorSize] matrix of each example
+     * @param classes label class of each example, or -1 for an example without a label
+     * @return DataSet backed by recycled buffers
+     */
+    DataSet assemble(INDArray[] reviews, int[] classes) {
+        int num = reviews.length;
+        int maxLength = 1;
+        for (INDArray review : reviews) {
+            maxLength = Math.max(maxLength, review.rows());
+        }
+
+        Slot slot = ring[nextSlot];
+        nextSlot = (nextSlot + 1) % ring.length;
+        ensureCapacity(slot, num * maxLength);
+
+        // 'f' order: element (i, k, t) of a [num, k, T] array is at i + num * k + num * K * t
+        DataBuffer features = slot.features;
+        DataBuffer labels = slot.labels;
+        DataBuffer featuresMask = slot.featuresMask;
+        DataBuffer labelsMask = slot.labelsMask;
+        int featureStepStride = num * vectorSize;
+        int labelStepStride = num * nClasses;
+
+        for (int i = 0; i < num; i++) {
+            INDArray review = reviews[i];
+            int length = review.rows();
+            if (review.columns() != vectorSize && length > 0) {
+                throw new IllegalArgumentException("Expected " + vectorSize + " columns, got " + review.columns());
+            }
+            DataBuffer src = review.data();
+            long srcOffset = review.offset();
+            int srcRowStride = review.stride(0);
+            int srcColStride = review.stride(1);
+
+            for (int t = 0; t < maxLength; t++) {
+                long dst = i + (long) t * featureStepStride;
+                if (t < length) {
+                    long srcRow = srcOffset + (long) t * srcRowStride;
+                    for (int k = 0; k < vectorSize; k++) {
+                        features.put(dst + (long) k * num, src.getFloat(srcRow + (long) k * srcColStride));
+                    }
+                } else {
+                    for (int k = 0; k < vectorSize; k++) {
+                        features.put(dst + (long) k * num, 0f);
+                    }
+                }
+                long dstLabel = i + (long) t * labelStepStride;
+                for (int c = 0; c < nClasses; c++) {
+                    labels.put(dstLabel + (long) c * num, 0f);
+                }
+                featuresMask.put(i + (long) t * num, t < length ? 1f : 0f);
+                labelsMask.put(i + (long) t * num, 0f);
+            }
+
+            if (length > 0 && classes[i] >= 0) {
+                int last = length - 1;
+                labels.put(i + (long) classes[i] * num + (long) last * labelStepStride, 1f);
+                labelsMask.put(i + (long) last * num, 1f);
+            }
+        }
+
+        return new DataSet(
+                view(features, new int[]{num, vectorSize, maxLength}),
+                view(labels, new int[]{num, nClasses, maxLength}),
+                view(featuresMask, new int[]{num, maxLength}),
+                view(labelsMask, new int[]{num, maxLength}));
+    }
+
+    /**
+     * @return number of times a buffer set had to be (re)allocated
+     */
+    int allocations() {
+        return allocations;
+    }
+
+    private void ensureCapacity(Slot slot, int exampleTime) {
+        if (slot.exampleTimeCapacity >= exampleTime) {
+            return;
+        }
+        int capacity = Math.max(exampleTime, slot.exampleTimeCapacity + slot.exampleTimeCapacity / 2);
+        slot.features = Nd4j.createBuffer((long) capacity * vectorSize);
+        slot.labels = Nd4j.createBuffer((long) capacity * nClasses);
+        slot.featuresMask = Nd4j.createBuffer((long) capacity);
+        slot.labelsMask = Nd4j.createBuffer((long) capacity);
+        slot.exampleTimeCapacity = capacity;
+        allocations++;
+    }
+
+    /**
+     * @return contiguous 'f' order view of the start of buf
+     */
+    private static INDArray view(DataBuffer buf, int[] shape) {
+        int[] stride = new int[shape.length];
+        int s = 1;
+        for (int d = 0; d < shape.length; d++) {
+            stride[d] = s;
+            s *= shape[d];
+        }
+        return Nd4j.create(buf, shape, stride, 0, 'f');
+    }
+}
@@ -0,0 +1,17 @@
+package cs517.data;
+
+import java.util.List;
+
+/**
+ * Decides which examples go into which mini-batch, and in which order the batches are visited, one epoch
+ * at a time. Iterators that accept a BatchSampler ask it for a new plan whenever they are reset.
+ */
+public interface BatchSampler {
+
+    /**
+     * @param epoch 0 for the first pass over the data, 1 for the second, ...
+     * @return the batches of the epoch, in visiting order, each an array of example indexes. Every
+     * example appears exactly once.
+     */
+    List<int[]> batches(int epoch);
+}
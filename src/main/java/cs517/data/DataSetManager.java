@@ -2,8 +2,8 @@ package cs517.data;
 
 import org.apache.uima.resource.ResourceInitializationException;
 import org.deeplearning4j.datasets.iterator.DataSetIterator;
-import org.deeplearning4j.models.embeddings.loader.WordVectorSerializer;
 import org.deeplearning4j.models.embeddings.wordvectors.WordVectors;
+import org.nd4j.linalg.api.ndarray.INDArray;
 
 import java.io.BufferedWriter;
 import java.io.File;
@@ -30,111 +30,335 @@ public class DataSetManager {
     Map<Integer, Set<String>> ratingBins;
 
     /**
-     * revIDs is just a list of review IDs. This will be used to create a random ordering of the reviews
-     * during the creation of Iterators to feed the neural net.
+     * revIDs is just a list of review IDs, in import order. This will be used to create a random ordering
+     * of the reviews during the creation of Iterators to feed the neural net.
      */
     Set<String> revIDs;
 
     List<String> shuffledRevIDs;
 
+    /**
+     * Size of the sentence vectors of the imported reviews, or 0 before the first import.
+     */
+    private int vectorSize;
+
+    /**
+     * In streaming mode, vectorized reviews are written to shard files during import instead of being
+     * kept in reviews, and shardIndex maps each review ID to where its vectors are stored.
+     */
+    private ReviewShardStore shardStore;
+    private Map<String, ReviewShardStore.Entry> shardIndex;
+
+    /**
+     * Tokenization service shared by every import done through this manager.
+     */
+    private final TokenizationService tokenizer;
+
+    private int importThreads = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * If true, every review's matrix is printed as it is vectorized.
+     */
+    private boolean verbose = false;
+
+    /**
+     * Maximum number of sentences kept per review. Part of the vectorized review cache key.
+     */
+    private static final int MAX_SENTENCES = 75;
+
+    /**
+     * Vectorized reviews from earlier runs, for the current word vector model. Only used when a cache
+     * directory has been set; reopened whenever the model changes.
+     */
+    private File vectorCacheDir;
+    private VectorizedReviewCache vectorCache;
+
+    /**
+     * Word vector model used to vectorize reviews. Loaded through the EmbeddingRegistry, so every import
+     * in the JVM shares one copy.
+     */
+//    private File wordVectorsFile = new File("C:/Docs/School/CSUPomona/CS517/NLPProject/data/GoogleNews-vectors-negative300.bin");
+    private File wordVectorsFile = new File("sentimentWordVectors.txt");
+
 
     public DataSetManager() {
+        this(new TokenizationService());
+    }
+
+    /**
+     * @param tokenizer tokenization service to use for imports. Pass the same instance to several
+     *                  DataSetManagers to share pipelines between them.
+     */
+    public DataSetManager(TokenizationService tokenizer) {
+        this.tokenizer = tokenizer;
         reviews = new HashMap<>();
         ratingBins = new HashMap<>();
-        revIDs = new HashSet<>();
+        revIDs = new LinkedHashSet<>();
         shuffledRevIDs = new ArrayList<>();
     }
 
     /**
-     * Imports reviews from a file.
+     * Imports reviews from a file using this manager's tokenization service.
      *
      * @param f File of reviews
      */
     public void importData(File f) throws IOException {
-//        final String WORD_VECTORS_PATH = "C:/Docs/School/CSUPomona/CS517/NLPProject/data/GoogleNews-vectors-negative300.bin";
-//        WordVectors vsm = WordVectorSerializer.loadGoogleModel(new File(WORD_VECTORS_PATH), true, false);
-        final String WORD_VECTORS_PATH = "sentimentWordVectors.txt";
-        WordVectors vsm = WordVectorSerializer.loadTxtVectors(new File(WORD_VECTORS_PATH));
-
-        Scanner sc = new Scanner(f);
-        sc.useDelimiter(System.getProperty("line.separator"));
-        String currentLine = sc.next();   // skip over 1st header line
-        Review currentReview;
-        while (sc.hasNext()) {
-            currentLine = sc.next();
-            currentReview = new Review(currentLine);
-            currentReview.vectorizeReview(vsm, 75);
+        importData(f, tokenizer);
+    }
 
+    /**
+     * Imports reviews from a file.
+     *
+     * @param f         File of reviews
+     * @param tokenizer tokenization service used to split reviews into sentences
+     */
+    public void importData(File f, TokenizationService tokenizer) throws IOException {
+        EmbeddingRegistry registry = EmbeddingRegistry.getDefault();
+        WordVectors vsm = registry.acquire(wordVectorsFile);
+        try {
+            ImportPipeline pipeline = new ImportPipeline(tokenizer, WordVectorTable.of(vsm), MAX_SENTENCES, importThreads);
+            pipeline.setCache(openVectorCache(registry));
+            pipeline.setVerbose(verbose);
+            int imported = pipeline.run(f, new ImportPipeline.Sink() {
+                @Override
+                public void accept(Review review) throws IOException {
+                    addReview(review);
+                }
+            });
+            if (vectorCache != null) {
+                vectorCache.flush();
+                System.out.println(String.format("%s: %d of %d reviews from cache", f.getName(),
+                        pipeline.cacheHits(), imported));
+                System.out.println(vectorCache.stats());
+            }
+        } finally {
+            registry.release(vsm);
+        }
+        if (isStreaming()) {
+            shardStore.flush();
+            System.out.println(String.format("Streaming mode: %d reviews in %d shard(s), %.1f MB on disk",
+                    shardIndex.size(), shardStore.shardCount(), shardStore.bytesWritten() / 1e6));
+        }
+        // quick check to see if import went ok
+        if ((isStreaming() ? shardIndex.size() : reviews.size()) != revIDs.size()) {
+            System.out.println("Warning: Size mismatch between reviews and revIDs!!!!");
+        }
+        System.out.println(tokenizer.stats());
+        System.out.println(IngestMetrics.getDefault().summary());
+
+    }
+
+    /**
+     * @return the vectorized review cache for the current word vector model, or null if no cache
+     * directory has been set
+     */
+    private VectorizedReviewCache openVectorCache(EmbeddingRegistry registry) throws IOException {
+        if (vectorCacheDir == null) {
+            return null;
+        }
+        String fingerprint = registry.fingerprint(wordVectorsFile);
+        if (vectorCache == null || !vectorCache.matches(fingerprint, MAX_SENTENCES)) {
+            if (vectorCache != null) {
+                vectorCache.close();
+            }
+            vectorCache = new VectorizedReviewCache(vectorCacheDir, fingerprint, MAX_SENTENCES);
+        }
+        return vectorCache;
+    }
+
+    /**
+     * Stores a Review and files its ID under the review's score. Reviews must be added in a
+     * deterministic order, since the iteration order of revIDs and ratingBins follows insertion order.
+     *
+     * @param currentReview vectorized review
+     */
+    private void addReview(Review currentReview) throws IOException {
+        if (currentReview.reviewVecs.rows() > 0) {
+            vectorSize = currentReview.reviewVecs.columns();
+        }
+        if (isStreaming()) {
+            // only the vectors are kept, on disk; the Review itself can be garbage collected
+            shardIndex.put(currentReview.id, shardStore.append(currentReview.reviewVecs, currentReview.score));
+        } else {
             // store Review in map
             reviews.put(currentReview.id, currentReview);
+        }
+
+        // add currentReview to proper bin, else create a bin.
+        Set<String> bin = ratingBins.get(currentReview.score);
+        if (bin == null) {
+            bin = new LinkedHashSet<>();
+            ratingBins.put(currentReview.score, bin);
+        }
+        bin.add(currentReview.id);
+
+        // add ID to list
+        revIDs.add(currentReview.id);
+    }
+
+    /**
+     * Switches to streaming mode, which keeps memory bounded no matter how big the corpus is: every
+     * review imported from now on is written to shard files in shardDir, and only its ID, score and
+     * location stay in memory. Iterators read the vectors back from disk batch by batch. Review text is
+     * not kept, so the to*Files methods are not available in this mode.
+     * Must be called before the first import.
+     *
+     * @param shardDir directory for the shard files
+     */
+    public void enableStreaming(File shardDir) throws IOException {
+        if (!revIDs.isEmpty()) {
+            throw new IllegalStateException("Streaming mode must be enabled before importing reviews");
+        }
+        shardStore = new ReviewShardStore(shardDir);
+        shardIndex = new HashMap<>();
+    }
+
+    /**
+     * @return true if vectorized reviews are kept on disk rather than in memory
+     */
+    public boolean isStreaming() {
+        return shardStore != null;
+    }
+
+    /**
+     * @return size of the sentence vectors of the imported reviews, i.e. the number of input columns of
+     * the iterators
+     */
+    public int vectorSize() {
+        return vectorSize;
+    }
+
+    /**
+     * @param id review ID
+     * @return the review's score
+     */
+    int scoreOf(String id) {
+        return isStreaming() ? shardIndex.get(id).score : reviews.get(id).score;
+    }
+
+    /**
+     * @param id review ID
+     * @return number of sentence vectors of the review, i.e. its length in time steps
+     */
+    int sentenceCount(String id) {
+        return isStreaming() ? shardIndex.get(id).rows : reviews.get(id).reviewVecs.rows();
+    }
 
-            // add currentReview to proper bin, else create a bin.
-            Integer currentScore = currentReview.score;
-            if (ratingBins.containsKey(currentScore)) {
-                Set<String> temp = ratingBins.get(currentScore);
-                temp.add(currentReview.id);
-                ratingBins.put(currentScore, temp);
-            } else {
-                Set<String> temp = new HashSet<>();
-                temp.add(currentReview.id);
-                ratingBins.put(currentScore, temp);
+    /**
+     * Looks up the vectors of several reviews. In streaming mode, they are read from the shard files
+     * in on-disk order.
+     *
+     * @param ids review IDs
+     * @return [sentences x vectorSize] matrix of each review, in the order of ids
+     */
+    INDArray[] vectorsOf(List<String> ids) {
+        INDArray[] result = new INDArray[ids.size()];
+        if (!isStreaming()) {
+            for (int i = 0; i < result.length; i++) {
+                result[i] = reviews.get(ids.get(i)).reviewVecs;
             }
-            // add ID to list
-            revIDs.add(currentReview.id);
+            return result;
         }
-        // quick check to see if import went ok
-        if (reviews.size() != revIDs.size()) {
-            System.out.println("Warning: Size mismatch between reviews and revIDs!!!!");
+        List<ReviewShardStore.Entry> entries = new ArrayList<>(ids.size());
+        for (String id : ids) {
+            entries.add(shardIndex.get(id));
+        }
+        try {
+            return shardStore.readAll(entries);
+        } catch (IOException e) {
+            throw new RuntimeException("Could not read review vectors from shards", e);
         }
+    }
 
+    private void requireReviewText() {
+        if (isStreaming()) {
+            throw new IllegalStateException("Review text is not kept in streaming mode");
+        }
+    }
+
+    /**
+     * Sets the word vector model used by importData. Defaults to sentimentWordVectors.txt.
+     *
+     * @param wordVectorsFile word vector file, in any format EmbeddingRegistry can load
+     */
+    public void setWordVectorsFile(File wordVectorsFile) {
+        this.wordVectorsFile = wordVectorsFile;
+    }
+
+    /**
+     * Keeps vectorized reviews in a persistent cache in dir, so later imports of the same reviews with the
+     * same word vector model skip tokenization and vectorization. Entries are keyed by review ID and
+     * checked against the review text, and there is a separate cache file per word vector model, so a
+     * changed review or model is simply vectorized again.
+     *
+     * @param dir cache directory, or null to turn the cache off
+     */
+    public void setVectorCacheDirectory(File dir) throws IOException {
+        if (vectorCache != null) {
+            vectorCache.close();
+            vectorCache = null;
+        }
+        this.vectorCacheDir = dir;
+    }
+
+    /**
+     * @param verbose if true, importData prints every review's matrix as it is vectorized. Off by default,
+     *                since on real data the console output costs more than the vectorization itself.
+     */
+    public void setVerbose(boolean verbose) {
+        this.verbose = verbose;
+    }
+
+    /**
+     * Sets the number of parse/vectorize threads used by importData. Defaults to the number of cores.
+     *
+     * @param importThreads number of worker threads, at least 1
+     */
+    public void setImportThreads(int importThreads) {
+        if (importThreads < 1) {
+            throw new IllegalArgumentException("importThreads must be at least 1");
+        }
+        this.importThreads = importThreads;
     }
 
     /**
      * Provides a group of three iterators, which when combined, include all the reviews.
-     * First, random shuffles the reviews, then assigns subarrays of the reviews to the
-     * training set, cross validation set, and testing set in the following proportions:
+     * The reviews of each score are randomly split between the training set, cross validation set, and
+     * testing set in the following proportions (see ReviewSplits.holdout):
      *      60% - training set
      *      20% - cross validation set
      *      20% - testing set
+     * The training iterator visits its reviews in a new order after every reset.
      *
      * @param batchSize size of mini-batch for GravesLSTM network layer.
      * @return [training iter, cv iter, testing iter]
      */
     public List<DataSetIterator> makeIterators(int batchSize) {
-        shuffledRevIDs = new ArrayList<>(revIDs);
-        Collections.shuffle(shuffledRevIDs);
-
-        int revCount = revIDs.size();
-        int trainEnd = (int) (0.6 * revCount);
-        int cvStart = trainEnd;
-        int cvEnd = (int) (0.8 * revCount);
-        int testStart = cvEnd;
-        int testEnd = revCount;
-
-        DataSetIterator trainIter = makeDataSetIterator(0, trainEnd, batchSize);
-        DataSetIterator cvIter = makeDataSetIterator(cvStart, cvEnd, batchSize);
-        DataSetIterator testIter = makeDataSetIterator(testStart, testEnd, batchSize);
-
-        List<DataSetIterator> myIterators = new ArrayList<>();
-        myIterators.add(trainIter);
-        myIterators.add(cvIter);
-        myIterators.add(testIter);
-
-        return myIterators;
+        return makeIterators(batchSize, new Random().nextLong());
     }
 
-
     /**
-     * Creates an iterator from a subList of shuffledRevIDs.
+     * Same as {@link #makeIterators(int)}, but splits with a fixed seed. Since imports are
+     * deterministic, the same data files and seed always give the same splits and shuffledRevIDs.
+     * For k-fold cross-validation, see ReviewSplits.kFold.
      *
-     * @param fromIndex         low endpoint (inclusive) of the subList
-     * @param toIndex           high endpoint (exclusive) of the subList
-     * @param batchSize         mini-batch size
-     * @return DataSetIterator  iterator that will yield the reviews whose IDs are contained
-     *                          within the subList.
+     * @param batchSize size of mini-batch for GravesLSTM network layer.
+     * @param seed      seed for the split
+     * @return [training iter, cv iter, testing iter]
      */
-    private DataSetIterator makeDataSetIterator(int fromIndex, int toIndex, int batchSize) {
-        return new MultiClassIterator(this, fromIndex, toIndex, batchSize);
+    public List<DataSetIterator> makeIterators(int batchSize, long seed) {
+        ReviewSplits splits = ReviewSplits.holdout(this, seed, 0.6, 0.2, 0.2);
+        shuffledRevIDs = splits.all();
+
+        List<DataSetIterator> myIterators = new ArrayList<>();
+        for (int p = 0; p < splits.parts(); p++) {
+            myIterators.add(splits.iterator(splits.part(p), batchSize));
+        }
+        // reshuffle the training set every epoch
+        MultiClassIterator trainIter = (MultiClassIterator) myIterators.get(0);
+        trainIter.setBatchSampler(new ShuffleSampler(trainIter.totalExamples(), batchSize, seed));
+
+        return myIterators;
     }
 
 
@@ -153,6 +377,7 @@ public class DataSetManager {
      * @param scoreType unlabeled (-1), negative (0), or positive (1)
      */
     public void toPolarityFiles(String dir, int scoreType) {
+        requireReviewText();
         if (!reviews.isEmpty()) {
             for (String key : reviews.keySet()) {
                 Review currentReview = reviews.get(key);
@@ -175,6 +400,7 @@ public class DataSetManager {
      * @param fname
      */
     public void toSingleFile(String fname) {
+        requireReviewText();
         if (!reviews.isEmpty()) {
             File f = new File(fname);
             try (BufferedWriter bw = new BufferedWriter(new FileWriter(f))) {
@@ -197,6 +423,7 @@ public class DataSetManager {
      * @param train indicates training or testing
      */
     public void toMultiClassFiles(String dir, boolean train) {
+        requireReviewText();
         File newDir = new File(dir + (train ? "train" : "test"));
         newDir.mkdirs();
         try {
@@ -0,0 +1,322 @@
+package cs517.data;
+
+import org.deeplearning4j.models.embeddings.loader.WordVectorSerializer;
+import org.deeplearning4j.models.embeddings.wordvectors.WordVectors;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Loads each word vector model once per JVM and shares it between everything that needs it
+ * (DataSetManager, SentimentIterator, Word2VecRNN...). Models are keyed by canonical path and a fingerprint
+ * of the file, so an edited file is picked up as a new model rather than served stale. By default the
+ * fingerprint only covers the path, size and modification time (and the header of mapped files), so it
+ * costs a stat rather than a read of a multi-GB file; setContentHashing(true) hashes the whole contents
+ * instead, for files that may be rewritten in place with the same size and time stamp.
+ * <p>
+ * Callers acquire a model, use it, and release it. Releasing does not unload the model (the next acquire
+ * would just load it again); models stay loaded until they are evicted. To swap models in a long-running
+ * job without holding both in memory at once, use {@link #swap(File, File)}, which evicts the old model
+ * before loading the new one.
+ * <p>
+ * Usage:
+ * <p>
+ * WordVectors vsm = EmbeddingRegistry.getDefault().acquire(new File("sentimentWordVectors.txt"));
+ * try {
+ *     ...
+ * } finally {
+ *     EmbeddingRegistry.getDefault().release(vsm);
+ * }
+ */
+public class EmbeddingRegistry {
+
+    private static final EmbeddingRegistry DEFAULT = new EmbeddingRegistry();
+
+    private final Map<String, Entry> entries = new HashMap<>();
+
+    /**
+     * Fingerprints, cached by canonical path so a file is only fingerprinted again when its size or
+     * modification time changes.
+     */
+    private final Map<String, CachedHash> hashes = new HashMap<>();
+    private volatile boolean contentHashing;
+
+
+    /**
+     * @return the JVM-wide registry
+     */
+    public static EmbeddingRegistry getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Returns the model stored in f, loading it if no current copy is loaded yet. If an older version of
+     * the same file is loaded, it is evicted first. Every acquire should be paired with a release.
+     *
+     * @param f word vector file: mapped binary format (see MappedWordVectors), text format, or
+     *          Google News binary format (*.bin, *.bin.gz)
+     * @return shared, read-only model
+     */
+    public WordVectors acquire(File f) throws IOException {
+        String path = f.getCanonicalPath();
+        // fingerprinted outside the registry lock: with content hashing, this reads the whole file
+        String key = path + "#" + fingerprint(f);
+
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry == null) {
+                evictPath(path);
+                long start = System.nanoTime();
+                WordVectors model = load(f);
+                entry = new Entry(path, model, (System.nanoTime() - start) / 1e6);
+                entries.put(key, entry);
+                System.out.println(String.format("EmbeddingRegistry: loaded %s in %.1f ms", path, entry.loadMillis));
+            }
+            entry.refCount++;
+            return entry.model;
+        }
+    }
+
+    /**
+     * Signals that the caller is done with model. The model stays loaded.
+     *
+     * @param model a model previously returned by acquire
+     */
+    public synchronized void release(WordVectors model) {
+        for (Entry entry : entries.values()) {
+            if (entry.model == model) {
+                if (entry.refCount > 0) {
+                    entry.refCount--;
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Returns the row-oriented lookup table of model. For models loaded through this registry the table
+     * is built once and cached alongside the model (and evicted with it); other models get a new table.
+     *
+     * @param model word vector model
+     * @return lookup table for model
+     */
+    public WordVectorTable table(WordVectors model) {
+        Entry owner = null;
+        synchronized (this) {
+            for (Entry entry : entries.values()) {
+                if (entry.model == model) {
+                    owner = entry;
+                    break;
+                }
+            }
+        }
+        if (owner == null) {
+            return WordVectorTable.build(model);
+        }
+        synchronized (owner) {
+            if (owner.table == null) {
+                owner.table = WordVectorTable.build(model);
+            }
+            return owner.table;
+        }
+    }
+
+    /**
+     * Drops the registry's reference to every loaded version of f. Callers that still hold the model
+     * can keep using it; the memory is reclaimed once they let go of it.
+     *
+     * @param f word vector file
+     * @return true if a model was evicted
+     */
+    public synchronized boolean evict(File f) throws IOException {
+        return evictPath(f.getCanonicalPath());
+    }
+
+    /**
+     * Evicts every model that is not currently acquired by anyone.
+     *
+     * @return number of models evicted
+     */
+    public synchronized int evictIdle() {
+        int evicted = 0;
+        for (Iterator<Entry> it = entries.values().iterator(); it.hasNext(); ) {
+            if (it.next().refCount == 0) {
+                it.remove();
+                evicted++;
+            }
+        }
+        return evicted;
+    }
+
+    /**
+     * Replaces oldModel by newModel: evicts oldModel first, so both are never loaded at the same time,
+     * then acquires newModel.
+     *
+     * @param oldModel file of the model being retired
+     * @param newModel file of the model to load
+     * @return the newly acquired model
+     */
+    public WordVectors swap(File oldModel, File newModel) throws IOException {
+        evict(oldModel);
+        return acquire(newModel);
+    }
+
+    /**
+     * @return canonical paths of the currently loaded models
+     */
+    public synchronized List<String> loadedModels() {
+        List<String> paths = new ArrayList<>();
+        for (Entry entry : entries.values()) {
+            paths.add(entry.path);
+        }
+        return paths;
+    }
+
+    /**
+     * Sets how files are fingerprinted from now on. Off by default.
+     *
+     * @param contentHashing true to hash the whole contents of files, false to only hash their canonical
+     *                       path, size, modification time and, for mapped files, header
+     */
+    public void setContentHashing(boolean contentHashing) {
+        this.contentHashing = contentHashing;
+    }
+
+    /**
+     * Computes (or returns the cached) fingerprint of f, as a hex SHA-1 string: of its contents with
+     * content hashing, of its canonical path, size, modification time and mapped format header otherwise.
+     *
+     * @param f any file
+     * @return hex SHA-1 fingerprint of the file
+     */
+    public String fingerprint(File f) throws IOException {
+        String path = f.getCanonicalPath();
+        long length = f.length();
+        long lastModified = f.lastModified();
+        boolean content = contentHashing;
+        synchronized (hashes) {
+            CachedHash cached = hashes.get(path);
+            if (cached != null && cached.content == content
+                    && cached.length == length && cached.lastModified == lastModified) {
+                return cached.hash;
+            }
+        }
+        String hash;
+        if (content) {
+            hash = sha1(new FileInputStream(f));
+        } else {
+            String stat = path + "|" + length + "|" + lastModified + "|" + mappedHeader(f);
+            hash = sha1(new ByteArrayInputStream(stat.getBytes(StandardCharsets.UTF_8)));
+        }
+        synchronized (hashes) {
+            hashes.put(path, new CachedHash(length, lastModified, content, hash));
+        }
+        return hash;
+    }
+
+    /**
+     * @return hex header of f if it is in the mapped format, which holds its vocabulary and layer size,
+     * or an empty string
+     */
+    private static String mappedHeader(File f) throws IOException {
+        if (!MappedWordVectors.isMappedFormat(f)) {
+            return "";
+        }
+        byte[] header = new byte[MappedWordVectors.HEADER_BYTES];
+        try (RandomAccessFile raf = new RandomAccessFile(f, "r")) {
+            raf.readFully(header);
+        }
+        return hex(header);
+    }
+
+    private boolean evictPath(String path) {
+        boolean evicted = false;
+        for (Iterator<Entry> it = entries.values().iterator(); it.hasNext(); ) {
+            if (it.next().path.equals(path)) {
+                it.remove();
+                evicted = true;
+            }
+        }
+        return evicted;
+    }
+
+    private static WordVectors load(File f) throws IOException {
+        if (MappedWordVectors.isMappedFormat(f)) {
+            return MappedWordVectors.open(f);
+        }
+        String name = f.getName();
+        if (name.endsWith(".bin") || name.endsWith(".bin.gz")) {
+            return WordVectorSerializer.loadGoogleModel(f, true);
+        }
+        return WordVectorSerializer.loadTxtVectors(f);
+    }
+
+    /**
+     * @return hex SHA-1 of everything in in, which is closed
+     */
+    private static String sha1(InputStream in) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        byte[] buffer = new byte[1 << 16];
+        try (InputStream input = in) {
+            int n;
+            while ((n = input.read(buffer)) != -1) {
+                digest.update(buffer, 0, n);
+            }
+        }
+        return hex(digest.digest());
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : bytes) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+
+    private static class Entry {
+        final String path;
+        final WordVectors model;
+        final double loadMillis;
+        int refCount;
+        WordVectorTable table;
+
+        Entry(String path, WordVectors model, double loadMillis) {
+            this.path = path;
+            this.model = model;
+            this.loadMillis = loadMillis;
+        }
+    }
+
+    private static class CachedHash {
+        final long length;
+        final long lastModified;
+        final boolean content;
+        final String hash;
+
+        CachedHash(long length, long lastModified, boolean content, String hash) {
+            this.length = length;
+            this.lastModified = lastModified;
+            this.content = content;
+            this.hash = hash;
+        }
+    }
+}
@@ -0,0 +1,369 @@
+package cs517.data;
+
+import org.nd4j.linalg.api.ndarray.INDArray;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Staged, multi-threaded import of a Maas review file:
+ * <p>
+ *      reader (1 thread)   parses lines of the mapped file and groups them into numbered chunks
+ *      workers (N threads) parse and vectorize every review of a chunk, or take its vectors from the
+ *                          VectorizedReviewCache when one is set
+ *      collector (caller)  hands finished chunks to a Sink in file order
+ * <p>
+ * Both queues between the stages are bounded, so a slow stage blocks the stage in front of it instead of
+ * letting chunks pile up on the heap. Since the collector re-orders chunks by sequence number, the Sink
+ * always sees reviews in file order, no matter how many workers there are or how they were scheduled.
+ */
+class ImportPipeline {
+
+    /**
+     * Receives the imported reviews, one at a time, in file order. Only ever called from the thread that
+     * called {@link #run(File, Sink)}.
+     */
+    interface Sink {
+        void accept(Review review) throws IOException;
+    }
+
+    private static final int DEFAULT_CHUNK_SIZE = 64;
+
+    private final TokenizationService tokenizer;
+    private final SentenceEmbedder embedder;
+    private final int maxSentences;
+    private final int nWorkers;
+    private final int chunkSize;
+    private final int queueCapacity;
+
+    private final IngestMetrics metrics = IngestMetrics.getDefault();
+    private boolean verbose;
+    private long reportSeconds = 10;
+
+    /** optional cache of previously vectorized reviews; null to always vectorize */
+    private VectorizedReviewCache cache;
+    private int cacheHits;
+
+    /**
+     * Mapped bytes of the file being imported. Set by the reader before it queues the first chunk, and
+     * only read (never modified) by the workers.
+     */
+    private volatile ByteBuffer buffer;
+
+
+    /**
+     * @param tokenizer    shared tokenization service
+     * @param vsm          lookup table of the vector space model used to vectorize reviews
+     * @param maxSentences maximum number of sentences kept per review
+     * @param nWorkers     number of parse/vectorize threads
+     */
+    ImportPipeline(TokenizationService tokenizer, WordVectorTable vsm, int maxSentences, int nWorkers) {
+        this(tokenizer, vsm, maxSentences, nWorkers, DEFAULT_CHUNK_SIZE, 2 * nWorkers);
+    }
+
+    /**
+     * @param tokenizer     shared tokenization service
+     * @param vsm           lookup table of the vector space model used to vectorize reviews
+     * @param maxSentences  maximum number of sentences kept per review
+     * @param nWorkers      number of parse/vectorize threads
+     * @param chunkSize     number of lines handed to a worker at a time
+     * @param queueCapacity capacity (in chunks) of each of the bounded queues
+     */
+    ImportPipeline(TokenizationService tokenizer, WordVectorTable vsm, int maxSentences, int nWorkers,
+                   int chunkSize, int queueCapacity) {
+        if (nWorkers < 1 || chunkSize < 1 || queueCapacity < 1) {
+            throw new IllegalArgumentException("nWorkers, chunkSize and queueCapacity must all be positive");
+        }
+        this.tokenizer = tokenizer;
+        this.embedder = new SentenceEmbedder(vsm, metrics);
+        this.maxSentences = maxSentences;
+        this.nWorkers = nWorkers;
+        this.chunkSize = chunkSize;
+        this.queueCapacity = queueCapacity;
+    }
+
+    /**
+     * Makes the workers reuse cached vectors for reviews whose text has not changed, and makes the
+     * collector add every newly vectorized review to the cache. The cache must have been opened for the
+     * same model and maxSentences as this pipeline.
+     *
+     * @param cache vectorized review cache, or null for none
+     */
+    void setCache(VectorizedReviewCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * @param verbose if true, print every review's matrix as it is vectorized. Off by default.
+     */
+    void setVerbose(boolean verbose) {
+        this.verbose = verbose;
+    }
+
+    /**
+     * @param seconds interval of the IngestMetrics summary logged while an import runs; 0 for none
+     */
+    void setReportSeconds(long seconds) {
+        this.reportSeconds = seconds;
+    }
+
+    /**
+     * @return number of reviews taken from the cache by the last run
+     */
+    int cacheHits() {
+        return cacheHits;
+    }
+
+    /**
+     * Imports every review in f (skipping the header line) and passes them to sink in file order.
+     *
+     * @param f    Maas TSV file
+     * @param sink receives the vectorized reviews
+     * @return number of reviews imported
+     */
+    int run(File f, Sink sink) throws IOException {
+        final BlockingQueue<Chunk> toWorkers = new ArrayBlockingQueue<>(queueCapacity);
+        final BlockingQueue<Chunk> toCollector = new ArrayBlockingQueue<>(queueCapacity);
+
+        ExecutorService pool = Executors.newFixedThreadPool(nWorkers + 1, new ImportThreadFactory());
+        ScheduledFuture<?> report = reportSeconds > 0 ? metrics.reportEvery(reportSeconds, TimeUnit.SECONDS) : null;
+        try {
+            Future<?> reader = pool.submit(new Reader(f, toWorkers));
+            for (int i = 0; i < nWorkers; i++) {
+                pool.submit(new Worker(toWorkers, toCollector));
+            }
+            int imported = collect(toCollector, sink);
+            reader.get();   // surfaces any exception the reader swallowed into the queue
+            return imported;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Import of " + f + " was interrupted", e);
+        } catch (ExecutionException e) {
+            throw asIOException(f, e.getCause());
+        } finally {
+            pool.shutdownNow();
+            if (report != null) {
+                report.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * Drains finished chunks, buffering the ones that arrive early, and feeds the sink in sequence order.
+     */
+    private int collect(BlockingQueue<Chunk> toCollector, Sink sink) throws InterruptedException, IOException {
+        TreeMap<Long, Chunk> pending = new TreeMap<>();
+        long nextSeq = 0;
+        int workersDone = 0;
+        int imported = 0;
+        cacheHits = 0;
+        while (workersDone < nWorkers) {
+            Chunk chunk = toCollector.take();
+            if (chunk.error != null) {
+                throw asIOException(null, chunk.error);
+            }
+            if (chunk.isEnd()) {
+                workersDone++;
+                continue;
+            }
+            pending.put(chunk.seq, chunk);
+            while (!pending.isEmpty() && pending.firstKey() == nextSeq) {
+                Chunk next = pending.pollFirstEntry().getValue();
+                for (int i = 0; i < next.reviews.size(); i++) {
+                    Review review = next.reviews.get(i);
+                    long start = System.nanoTime();
+                    if (cache != null) {
+                        if (next.fresh[i]) {
+                            cache.put(review.id, next.textHashes[i], review.reviewVecs);
+                        } else {
+                            cacheHits++;
+                        }
+                    }
+                    sink.accept(review);
+                    metrics.record(IngestMetrics.Stage.STORE, System.nanoTime() - start);
+                    metrics.countReview();
+                    imported++;
+                }
+                nextSeq++;
+            }
+        }
+        if (!pending.isEmpty()) {
+            throw new IOException("Import finished with " + pending.size() + " chunk(s) out of sequence");
+        }
+        return imported;
+    }
+
+    private static IOException asIOException(File f, Throwable t) {
+        if (t instanceof IOException) {
+            return (IOException) t;
+        }
+        return new IOException("Import" + (f == null ? "" : " of " + f) + " failed", t);
+    }
+
+
+    /**
+     * A numbered group of consecutive parsed lines, and after a worker is done with it, their Reviews.
+     * A chunk with seq == -1 marks the end of the stream; a chunk with an error aborts the import.
+     */
+    private static class Chunk {
+        final long seq;
+        final List<MaasTsvParser.Record> records;
+        List<Review> reviews;
+        /** when a cache is in use: hash of each review's text, and whether it had to be vectorized */
+        long[] textHashes;
+        boolean[] fresh;
+        Throwable error;
+
+        Chunk(long seq, List<MaasTsvParser.Record> records) {
+            this.seq = seq;
+            this.records = records;
+        }
+
+        static Chunk end() {
+            return new Chunk(-1, null);
+        }
+
+        static Chunk failed(Throwable t) {
+            Chunk c = end();
+            c.error = t;
+            return c;
+        }
+
+        boolean isEnd() {
+            return seq < 0;
+        }
+    }
+
+
+    private class Reader implements Runnable {
+        private final File f;
+        private final BlockingQueue<Chunk> out;
+
+        Reader(File f, BlockingQueue<Chunk> out) {
+            this.f = f;
+            this.out = out;
+        }
+
+        @Override
+        public void run() {
+            try {
+                try {
+                    MaasTsvParser parser = MaasTsvParser.open(f);
+                    buffer = parser.buffer();
+                    parser.skipLine();   // skip over 1st header line
+                    long seq = 0;
+                    List<MaasTsvParser.Record> records = new ArrayList<>(chunkSize);
+                    MaasTsvParser.Record r = new MaasTsvParser.Record();
+                    long start = System.nanoTime();
+                    while (parser.next(r)) {
+                        metrics.record(IngestMetrics.Stage.PARSE, System.nanoTime() - start);
+                        records.add(r);
+                        r = new MaasTsvParser.Record();
+                        if (records.size() == chunkSize) {
+                            out.put(new Chunk(seq++, records));
+                            records = new ArrayList<>(chunkSize);
+                        }
+                        start = System.nanoTime();
+                    }
+                    if (!records.isEmpty()) {
+                        out.put(new Chunk(seq, records));
+                    }
+                    System.out.println(f.getName() + ": " + parser.stats());
+                } catch (IOException | RuntimeException e) {
+                    // let every worker stop; the first one to see this will report it
+                    for (int i = 0; i < nWorkers; i++) {
+                        out.put(Chunk.failed(e));
+                    }
+                    return;
+                }
+                for (int i = 0; i < nWorkers; i++) {
+                    out.put(Chunk.end());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+
+    private class Worker implements Runnable {
+        private final BlockingQueue<Chunk> in;
+        private final BlockingQueue<Chunk> out;
+
+        Worker(BlockingQueue<Chunk> in, BlockingQueue<Chunk> out) {
+            this.in = in;
+            this.out = out;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    Chunk chunk = in.take();
+                    if (chunk.isEnd()) {
+                        out.put(chunk);
+                        return;
+                    }
+                    try {
+                        int n = chunk.records.size();
+                        List<Review> reviews = new ArrayList<>(n);
+                        if (cache != null) {
+                            chunk.textHashes = new long[n];
+                            chunk.fresh = new boolean[n];
+                        }
+                        for (int i = 0; i < n; i++) {
+                            Review review = new Review(chunk.records.get(i), buffer);
+                            INDArray cached = null;
+                            if (cache != null) {
+                                chunk.textHashes[i] = VectorizedReviewCache.textHash(review.reviewText);
+                                cached = cache.get(review.id, chunk.textHashes[i]);
+                                chunk.fresh[i] = cached == null;
+                            }
+                            if (cached != null) {
+                                review.reviewVecs = cached;
+                            } else {
+                                review.vectorizeReview(tokenizer, embedder, maxSentences, verbose);
+                            }
+                            reviews.add(review);
+                        }
+                        chunk.reviews = reviews;
+                        out.put(chunk);
+                    } catch (RuntimeException | IOException e) {
+                        out.put(Chunk.failed(e));
+                        return;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+
+    private static class ImportThreadFactory implements ThreadFactory {
+        private static final AtomicInteger poolNumber = new AtomicInteger();
+        private final int pool = poolNumber.incrementAndGet();
+        private final AtomicInteger threadNumber = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "import-" + pool + "-" + threadNumber.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
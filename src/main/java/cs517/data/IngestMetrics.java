@@ -0,0 +1,273 @@
+package cs517.data;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.management.ObjectName;
+
+/**
+ * Counters and latency histograms for the review import path:
+ * <p>
+ *      parse       finding the fields of one line of a Maas file
+ *      annotate    tokenizing and sentence-splitting one review
+ *      lookup      resolving the tokens of one review to word vector rows
+ *      average     averaging the word vectors of one review's sentences
+ *      store       handing one vectorized review to the DataSetManager (and the cache)
+ * <p>
+ * plus token, out-of-vocabulary and sentence counts. The JVM-wide instance is registered with the platform
+ * MBeanServer, so it can be watched with jconsole/VisualVM, and ImportPipeline logs {@link #summary()}
+ * periodically while an import runs. All methods are thread-safe; recording is lock-free.
+ */
+public final class IngestMetrics implements IngestMetricsMXBean {
+
+    public enum Stage {
+        PARSE, ANNOTATE, LOOKUP, AVERAGE, STORE;
+
+        String label() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    private static final String OBJECT_NAME = "cs517.data:type=IngestMetrics";
+    private static final IngestMetrics DEFAULT = register(new IngestMetrics());
+
+    private static final ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "ingest-metrics");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    private final LatencyHistogram[] latencies = new LatencyHistogram[Stage.values().length];
+    private final AtomicLong reviews = new AtomicLong();
+    private final AtomicLong sentences = new AtomicLong();
+    private final AtomicLong truncatedSentences = new AtomicLong();
+    private final AtomicLong tokens = new AtomicLong();
+    private final AtomicLong oovTokens = new AtomicLong();
+
+
+    public IngestMetrics() {
+        for (int i = 0; i < latencies.length; i++) {
+            latencies[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * @return the JVM-wide metrics, registered with JMX
+     */
+    public static IngestMetrics getDefault() {
+        return DEFAULT;
+    }
+
+    private static IngestMetrics register(IngestMetrics metrics) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, new ObjectName(OBJECT_NAME));
+        } catch (Exception e) {
+            System.out.println("IngestMetrics: could not register with JMX: " + e);
+        }
+        return metrics;
+    }
+
+    /**
+     * Records how long one item took in a stage.
+     *
+     * @param stage import stage
+     * @param nanos elapsed time in nanoseconds
+     */
+    public void record(Stage stage, long nanos) {
+        latencies[stage.ordinal()].record(nanos);
+    }
+
+    /**
+     * Counts a review that has been stored.
+     */
+    public void countReview() {
+        reviews.incrementAndGet();
+    }
+
+    /**
+     * Counts the sentences and tokens of one vectorized review.
+     *
+     * @param kept      sentences kept
+     * @param truncated sentences dropped past maxSentences
+     * @param total     tokens in the kept sentences
+     * @param oov       of which were out of vocabulary
+     */
+    public void countSentences(int kept, int truncated, int total, int oov) {
+        sentences.addAndGet(kept);
+        truncatedSentences.addAndGet(truncated);
+        tokens.addAndGet(total);
+        oovTokens.addAndGet(oov);
+    }
+
+    /**
+     * Logs {@link #summary()} every period until the returned future is cancelled.
+     *
+     * @param period time between log lines
+     * @param unit   unit of period
+     * @return handle to cancel the reporting with
+     */
+    public ScheduledFuture<?> reportEvery(long period, TimeUnit unit) {
+        return reporter.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                System.out.println(summary());
+            }
+        }, period, period, unit);
+    }
+
+    @Override
+    public long getReviews() {
+        return reviews.get();
+    }
+
+    @Override
+    public long getSentences() {
+        return sentences.get();
+    }
+
+    @Override
+    public long getTruncatedSentences() {
+        return truncatedSentences.get();
+    }
+
+    @Override
+    public long getTokens() {
+        return tokens.get();
+    }
+
+    @Override
+    public long getOutOfVocabularyTokens() {
+        return oovTokens.get();
+    }
+
+    @Override
+    public double getOutOfVocabularyRate() {
+        long t = tokens.get();
+        return t == 0 ? 0.0 : (double) oovTokens.get() / t;
+    }
+
+    @Override
+    public Map<String, Double> getLatencyMicros() {
+        Map<String, Double> result = new LinkedHashMap<>();
+        for (Stage stage : Stage.values()) {
+            LatencyHistogram h = latencies[stage.ordinal()];
+            result.put(stage.label() + ".count", (double) h.count());
+            result.put(stage.label() + ".mean", h.meanNanos() / 1e3);
+            result.put(stage.label() + ".p50", h.percentileNanos(0.50) / 1e3);
+            result.put(stage.label() + ".p99", h.percentileNanos(0.99) / 1e3);
+            result.put(stage.label() + ".max", h.maxNanos() / 1e3);
+        }
+        return result;
+    }
+
+    @Override
+    public String getSummary() {
+        return summary();
+    }
+
+    /**
+     * @return one-line summary: counts, OOV rate, and mean/p99 latency of every stage
+     */
+    public String summary() {
+        StringBuilder sb = new StringBuilder(String.format(Locale.ROOT,
+                "IngestMetrics: %d reviews, %d sentences (%d truncated), %d tokens (%.1f%% OOV)",
+                getReviews(), getSentences(), getTruncatedSentences(), getTokens(), 100 * getOutOfVocabularyRate()));
+        for (Stage stage : Stage.values()) {
+            LatencyHistogram h = latencies[stage.ordinal()];
+            sb.append(String.format(Locale.ROOT, ", %s %.1f/%.1f us", stage.label(),
+                    h.meanNanos() / 1e3, h.percentileNanos(0.99) / 1e3));
+        }
+        return sb.append(" (mean/p99)").toString();
+    }
+
+    @Override
+    public void reset() {
+        for (LatencyHistogram h : latencies) {
+            h.reset();
+        }
+        reviews.set(0);
+        sentences.set(0);
+        truncatedSentences.set(0);
+        tokens.set(0);
+        oovTokens.set(0);
+    }
+
+
+    /**
+     * Lock-free latency histogram with power-of-two buckets: bucket b counts latencies in
+     * [2^(b-1), 2^b) nanoseconds, so percentiles are accurate to within a factor of 2.
+     */
+    static final class LatencyHistogram {
+        private final AtomicLongArray buckets = new AtomicLongArray(64);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong totalNanos = new AtomicLong();
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        void record(long nanos) {
+            if (nanos < 0) {
+                nanos = 0;
+            }
+            buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(nanos));
+            count.incrementAndGet();
+            totalNanos.addAndGet(nanos);
+            long max = maxNanos.get();
+            while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+                max = maxNanos.get();
+            }
+        }
+
+        long count() {
+            return count.get();
+        }
+
+        double meanNanos() {
+            long n = count.get();
+            return n == 0 ? 0.0 : (double) totalNanos.get() / n;
+        }
+
+        long maxNanos() {
+            return maxNanos.get();
+        }
+
+        /**
+         * @param q quantile, 0 < q <= 1
+         * @return upper bound of the bucket holding the q-th latency, capped at the maximum
+         */
+        double percentileNanos(double q) {
+            long n = count.get();
+            if (n == 0) {
+                return 0.0;
+            }
+            long rank = (long) Math.ceil(q * n);
+            long seen = 0;
+            for (int b = 0; b < 64; b++) {
+                seen += buckets.get(b);
+                if (seen >= rank) {
+                    return Math.min(b == 0 ? 0L : (1L << b) - 1, maxNanos.get());
+                }
+            }
+            return maxNanos.get();
+        }
+
+        void reset() {
+            for (int b = 0; b < 64; b++) {
+                buckets.set(b, 0);
+            }
+            count.set(0);
+            totalNanos.set(0);
+            maxNanos.set(0);
+        }
+    }
+}
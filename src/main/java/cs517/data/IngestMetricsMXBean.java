@@ -0,0 +1,31 @@
+package cs517.data;
+
+import java.util.Map;
+
+/**
+ * JMX view of {@link IngestMetrics}, registered as "cs517.data:type=IngestMetrics".
+ */
+public interface IngestMetricsMXBean {
+
+    long getReviews();
+
+    long getSentences();
+
+    long getTruncatedSentences();
+
+    long getTokens();
+
+    long getOutOfVocabularyTokens();
+
+    double getOutOfVocabularyRate();
+
+    /**
+     * @return latency summary of every stage in microseconds, keyed "stage.count", "stage.mean",
+     * "stage.p50", "stage.p99" and "stage.max" (e.g. "annotate.p99")
+     */
+    Map<String, Double> getLatencyMicros();
+
+    String getSummary();
+
+    void reset();
+}
@@ -0,0 +1,91 @@
+package cs517.data;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Groups examples of similar length into the same mini-batch, so little of each padded batch is masked
+ * padding. Each epoch:
+ * <p>
+ *      1. all examples are shuffled
+ *      2. the shuffled examples are cut into pools of poolBatches x batchSize
+ *      3. each pool is sorted by length and cut into batches
+ *      4. all batches are shuffled
+ * <p>
+ * so batches hold examples of similar length, but which examples end up together, and the order of the
+ * batches, change from epoch to epoch. Larger pools give tighter length groups and less randomness.
+ * Plans only depend on the seed and the epoch, so they are reproducible.
+ */
+public class LengthBucketSampler implements BatchSampler {
+
+    public static final int DEFAULT_POOL_BATCHES = 50;
+
+    private final int[] lengths;
+    private final int batchSize;
+    private final int poolBatches;
+    private final long seed;
+
+
+    /**
+     * @param lengths   length of each example (e.g. words or sentences, after truncation)
+     * @param batchSize examples per batch; the last batch of a pool may be smaller
+     * @param seed      seed of the per-epoch shuffles
+     */
+    public LengthBucketSampler(int[] lengths, int batchSize, long seed) {
+        this(lengths, batchSize, DEFAULT_POOL_BATCHES, seed);
+    }
+
+    /**
+     * @param lengths     length of each example (e.g. words or sentences, after truncation)
+     * @param batchSize   examples per batch; the last batch of a pool may be smaller
+     * @param poolBatches number of batches per length-sorted pool
+     * @param seed        seed of the per-epoch shuffles
+     */
+    public LengthBucketSampler(int[] lengths, int batchSize, int poolBatches, long seed) {
+        if (batchSize < 1 || poolBatches < 1) {
+            throw new IllegalArgumentException("batchSize and poolBatches must be positive");
+        }
+        this.lengths = lengths;
+        this.batchSize = batchSize;
+        this.poolBatches = poolBatches;
+        this.seed = seed;
+    }
+
+    @Override
+    public List<int[]> batches(int epoch) {
+        Random rng = ShuffleSampler.epochRandom(seed, epoch);
+
+        Integer[] order = new Integer[lengths.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Collections.shuffle(Arrays.asList(order), rng);
+
+        Comparator<Integer> byLength = new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Integer.compare(lengths[a], lengths[b]);
+            }
+        };
+        int poolSize = poolBatches * batchSize;
+        List<int[]> batches = new ArrayList<>((lengths.length + batchSize - 1) / batchSize);
+        for (int poolStart = 0; poolStart < order.length; poolStart += poolSize) {
+            int poolEnd = Math.min(poolStart + poolSize, order.length);
+            Arrays.sort(order, poolStart, poolEnd, byLength);   // stable, so ties stay shuffled
+            for (int start = poolStart; start < poolEnd; start += batchSize) {
+                int end = Math.min(start + batchSize, poolEnd);
+                int[] batch = new int[end - start];
+                for (int i = start; i < end; i++) {
+                    batch[i - start] = order[i];
+                }
+                batches.add(batch);
+            }
+        }
+        Collections.shuffle(batches, rng);
+        return batches;
+    }
+}
@@ -0,0 +1,284 @@
+package cs517.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Streaming parser for the Maas TSV files. It walks the raw bytes of a (usually memory-mapped) file and
+ * records where the fields of each line are, without regexes, Scanners or intermediate Strings. Strings
+ * are only made when a caller asks for the id or text of a record.
+ * <p>
+ * Both layouts are handled:
+ *      labeled             "5814_8"    1   "review text"
+ *      unlabeled/test      "12311_10"  "review text"
+ * A missing polarity column gives a polarity of -1, like the Review(String) constructor always did.
+ * <p>
+ * Usage:
+ * <p>
+ * MaasTsvParser parser = MaasTsvParser.open(new File("labeledTrainData.tsv"));
+ * parser.skipLine();     // header
+ * MaasTsvParser.Record r = new MaasTsvParser.Record();
+ * while (parser.next(r)) {
+ *     String id = r.id(parser.buffer());
+ *     ...
+ * }
+ * System.out.println(parser.stats());
+ */
+public final class MaasTsvParser {
+
+    /**
+     * Offsets of the fields of one line, relative to the parser's buffer.
+     */
+    public static final class Record {
+        int idStart;
+        int idEnd;
+        int score;
+        int polarity;
+        int textStart;
+        int textEnd;
+        long lineNumber;
+
+        public int score() {
+            return score;
+        }
+
+        public int polarity() {
+            return polarity;
+        }
+
+        public long lineNumber() {
+            return lineNumber;
+        }
+
+        /**
+         * @param buf the buffer the record was parsed from
+         * @return the review id, e.g. "5814_8"
+         */
+        public String id(ByteBuffer buf) {
+            return decode(buf, idStart, idEnd);
+        }
+
+        /**
+         * @param buf the buffer the record was parsed from
+         * @return the review text, without the enclosing quotes
+         */
+        public String text(ByteBuffer buf) {
+            return decode(buf, textStart, textEnd);
+        }
+
+        /**
+         * @return length of the review text in bytes
+         */
+        public int textBytes() {
+            return textEnd - textStart;
+        }
+    }
+
+    private final ByteBuffer buf;
+    private final int base;
+    private final int limit;
+    private int pos;
+    private long lineNumber;
+    private long records;
+    private long parseNanos;
+
+
+    /**
+     * @param buf bytes of a Maas TSV file; parsing starts at buf's position. The buffer is never modified,
+     *            and its position and limit are left alone.
+     */
+    public MaasTsvParser(ByteBuffer buf) {
+        this.buf = buf;
+        this.base = buf.position();
+        this.pos = base;
+        this.limit = buf.limit();
+    }
+
+    /**
+     * Memory-maps f for parsing.
+     *
+     * @param f Maas TSV file, smaller than 2GB
+     * @return parser positioned at the first line of f
+     */
+    public static MaasTsvParser open(File f) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(f, "r"); FileChannel ch = raf.getChannel()) {
+            if (ch.size() > Integer.MAX_VALUE) {
+                throw new IOException(f + " is too large to map (" + ch.size() + " bytes)");
+            }
+            return new MaasTsvParser(ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size()));
+        }
+    }
+
+    /**
+     * @return the buffer being parsed, for decoding records
+     */
+    public ByteBuffer buffer() {
+        return buf;
+    }
+
+    /**
+     * Skips the rest of the current line, e.g. the header line.
+     *
+     * @return false if there was nothing left to skip
+     */
+    public boolean skipLine() {
+        if (pos >= limit) {
+            return false;
+        }
+        pos = Math.min(endOfLine(pos) + 1, limit);
+        lineNumber++;
+        return true;
+    }
+
+    /**
+     * Parses the next non-empty line into r.
+     *
+     * @param r record to fill
+     * @return false at the end of the input
+     * @throws IllegalArgumentException if the line is not in either Maas layout
+     */
+    public boolean next(Record r) {
+        long start = System.nanoTime();
+        try {
+            while (pos < limit) {
+                int eol = endOfLine(pos);
+                int lineStart = pos;
+                pos = Math.min(eol + 1, limit);
+                lineNumber++;
+
+                int end = eol;
+                if (end > lineStart && buf.get(end - 1) == '\r') {
+                    end--;
+                }
+                if (end == lineStart) {
+                    continue;   // blank line, e.g. after the last review
+                }
+                parseLine(lineStart, end, r);
+                r.lineNumber = lineNumber;
+                records++;
+                return true;
+            }
+            return false;
+        } finally {
+            parseNanos += System.nanoTime() - start;
+        }
+    }
+
+    private void parseLine(int start, int end, Record r) {
+        int p = start;
+        p = expect(p, end, '"');
+
+        // id: <digits>_<score digits>
+        r.idStart = p;
+        while (p < end && isDigit(buf.get(p))) p++;
+        p = expect(p, end, '_');
+        int score = 0;
+        int scoreStart = p;
+        while (p < end && isDigit(buf.get(p))) {
+            score = score * 10 + (buf.get(p) - '0');
+            p++;
+        }
+        if (p == scoreStart) {
+            throw malformed("missing score in id");
+        }
+        r.idEnd = p;
+        r.score = score;
+        p = expect(p, end, '"');
+        p = expect(p, end, '\t');
+
+        // optional polarity column
+        r.polarity = -1;
+        if (p < end && (buf.get(p) == '0' || buf.get(p) == '1')) {
+            r.polarity = buf.get(p) - '0';
+            p = expect(p + 1, end, '\t');
+        }
+
+        // text runs from the opening quote to the last quote on the line
+        p = expect(p, end, '"');
+        if (end - 1 < p || buf.get(end - 1) != '"') {
+            throw malformed("review text is not quoted");
+        }
+        r.textStart = p;
+        r.textEnd = end - 1;
+    }
+
+    private int expect(int p, int end, char c) {
+        if (p >= end || buf.get(p) != c) {
+            throw malformed("expected '" + (c == '\t' ? "\\t" : String.valueOf(c)) + "'");
+        }
+        return p + 1;
+    }
+
+    private IllegalArgumentException malformed(String what) {
+        return new IllegalArgumentException("Malformed Maas line " + lineNumber + ": " + what);
+    }
+
+    private int endOfLine(int from) {
+        int p = from;
+        while (p < limit && buf.get(p) != '\n') {
+            p++;
+        }
+        return p;
+    }
+
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+
+    private static String decode(ByteBuffer buf, int start, int end) {
+        ByteBuffer slice = buf.duplicate();
+        slice.limit(end).position(start);
+        return StandardCharsets.UTF_8.decode(slice).toString();
+    }
+
+    /**
+     * @return number of records parsed so far
+     */
+    public long records() {
+        return records;
+    }
+
+    /**
+     * @return bytes consumed so far
+     */
+    public long bytesParsed() {
+        return pos - base;
+    }
+
+    /**
+     * @return parse throughput so far, in MB/s, counting only time spent inside next()
+     */
+    public double megabytesPerSecond() {
+        return parseNanos == 0 ? 0.0 : (bytesParsed() / 1e6) / (parseNanos / 1e9);
+    }
+
+    /**
+     * @return one-line summary of the records parsed and the parse throughput
+     */
+    public String stats() {
+        return String.format("MaasTsvParser: %d records, %.1f MB in %.1f ms (%.1f MB/s)",
+                records, bytesParsed() / 1e6, parseNanos / 1e6, megabytesPerSecond());
+    }
+
+    /**
+     * Parses whole files and reports throughput.
+     *
+     * @param args Maas TSV files
+     */
+    public static void main(String[] args) throws IOException {
+        for (String name : args) {
+            MaasTsvParser parser = open(new File(name));
+            parser.skipLine();
+            Record r = new Record();
+            long textBytes = 0;
+            while (parser.next(r)) {
+                textBytes += r.textBytes();
+            }
+            System.out.println(name + ": " + parser.stats() + ", " + textBytes + " bytes of review text");
+        }
+    }
+}
@@ -0,0 +1,982 @@
+package cs517.data;
+
+import org.deeplearning4j.models.embeddings.WeightLookupTable;
+import org.deeplearning4j.models.embeddings.reader.ModelUtils;
+import org.deeplearning4j.models.embeddings.wordvectors.WordVectors;
+import org.deeplearning4j.models.sequencevectors.sequence.SequenceElement;
+import org.deeplearning4j.models.word2vec.VocabWord;
+import org.deeplearning4j.models.word2vec.wordstore.VocabCache;
+import org.deeplearning4j.plot.Tsne;
+import org.deeplearning4j.ui.UiConnectionInfo;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Read-only WordVectors backed by a memory-mapped binary file. The vectors never touch the Java heap:
+ * they are read straight out of the OS page cache, which is also shared by every other JVM that maps
+ * the same file. Opening a model only maps the file and reads its vocabulary.
+ * <p>
+ * Binary files are made once from a text (WordVectorSerializer.writeWordVectors) or Google word2vec
+ * binary model:
+ * <p>
+ * java cs517.data.MappedWordVectors sentimentWordVectors.txt sentimentWordVectors.emb
+ * <p>
+ * File layout (little-endian):
+ *      header  magic (int), version (int), vocabSize (int), layerSize (int),
+ *              vocabOffset (long), reserved (long)
+ *      matrix  vocabSize x layerSize floats, row i is the vector of word i
+ *      vocab   vocabSize x (length (int), UTF-8 bytes)
+ */
+public class MappedWordVectors implements WordVectors {
+
+    private static final long serialVersionUID = 1L;
+
+    static final int MAGIC = 0x454d4231;    // "EMB1"
+    static final int VERSION = 1;
+    static final int HEADER_BYTES = 32;
+
+    private final String path;
+    private final int vocabSize;
+    private final int layerSize;
+    private final int rowsPerSegment;
+    private final transient FloatBuffer[] segments;
+    private final String[] words;
+    private final VocabularyIndex wordIndex;
+    private String unk = "UNK";
+
+
+    private MappedWordVectors(String path, int vocabSize, int layerSize, FloatBuffer[] segments, int rowsPerSegment,
+                              String[] words) {
+        this.path = path;
+        this.vocabSize = vocabSize;
+        this.layerSize = layerSize;
+        this.segments = segments;
+        this.rowsPerSegment = rowsPerSegment;
+        this.words = words;
+        wordIndex = VocabularyIndex.build(words);
+    }
+
+    /**
+     * Maps a binary model written by {@link #convert(File, File)}.
+     *
+     * @param f binary model
+     * @return the mapped model
+     */
+    public static MappedWordVectors open(File f) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(f, "r"); FileChannel ch = raf.getChannel()) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(ch, header, 0);
+            header.flip();
+            if (header.getInt() != MAGIC) {
+                throw new IOException(f + " is not a binary word vector file");
+            }
+            int version = header.getInt();
+            if (version != VERSION) {
+                throw new IOException(f + " has unsupported version " + version);
+            }
+            int vocabSize = header.getInt();
+            int layerSize = header.getInt();
+            long vocabOffset = header.getLong();
+
+            // a single mapping is limited to 2GB, so big models are mapped as several whole-row segments
+            long rowBytes = 4L * layerSize;
+            int rowsPerSegment = (int) Math.max(1, Math.min(vocabSize, Integer.MAX_VALUE / rowBytes));
+            int nSegments = (vocabSize + rowsPerSegment - 1) / rowsPerSegment;
+            FloatBuffer[] segments = new FloatBuffer[nSegments];
+            for (int s = 0; s < nSegments; s++) {
+                int rows = Math.min(rowsPerSegment, vocabSize - s * rowsPerSegment);
+                MappedByteBuffer mapped = ch.map(FileChannel.MapMode.READ_ONLY,
+                        HEADER_BYTES + s * rowsPerSegment * rowBytes, rows * rowBytes);
+                segments[s] = mapped.order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+            }
+
+            String[] words = new String[vocabSize];
+            MappedByteBuffer vocab = ch.map(FileChannel.MapMode.READ_ONLY, vocabOffset, ch.size() - vocabOffset);
+            vocab.order(ByteOrder.LITTLE_ENDIAN);
+            byte[] scratch = new byte[256];
+            for (int i = 0; i < vocabSize; i++) {
+                int len = vocab.getInt();
+                if (len > scratch.length) {
+                    scratch = new byte[len];
+                }
+                vocab.get(scratch, 0, len);
+                words[i] = new String(scratch, 0, len, StandardCharsets.UTF_8);
+            }
+            return new MappedWordVectors(f.getCanonicalPath(), vocabSize, layerSize, segments, rowsPerSegment, words);
+        }
+    }
+
+    /**
+     * @param f any file
+     * @return true if f starts with the binary word vector magic number
+     */
+    public static boolean isMappedFormat(File f) throws IOException {
+        if (!f.isFile() || f.length() < HEADER_BYTES) {
+            return false;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(f, "r")) {
+            return Integer.reverseBytes(raf.readInt()) == MAGIC;
+        }
+    }
+
+    /**
+     * Converts a text or Google word2vec binary model (*.bin, *.bin.gz) into the mapped binary format.
+     * Vectors are streamed to disk as they are read, so only the vocabulary is held in memory.
+     *
+     * @param source text or word2vec binary model
+     * @param target binary model to write
+     * @return number of words written
+     */
+    public static int convert(File source, File target) throws IOException {
+        String name = source.getName();
+        boolean binary = name.endsWith(".bin") || name.endsWith(".bin.gz");
+        try (RandomAccessFile raf = new RandomAccessFile(target, "rw"); FileChannel out = raf.getChannel()) {
+            out.truncate(0);
+            out.position(HEADER_BYTES);
+            VectorSink sink = new VectorSink(out);
+            if (binary) {
+                readWord2VecBinary(source, sink);
+            } else {
+                readText(source, sink);
+            }
+            sink.finish();
+
+            long vocabOffset = out.position();
+            ByteBuffer buf = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+            for (String word : sink.words) {
+                byte[] bytes = word.getBytes(StandardCharsets.UTF_8);
+                if (buf.remaining() < 4 + bytes.length) {
+                    flush(out, buf);
+                    if (buf.capacity() < 4 + bytes.length) {
+                        buf = ByteBuffer.allocate(4 + bytes.length).order(ByteOrder.LITTLE_ENDIAN);
+                    }
+                }
+                buf.putInt(bytes.length).put(bytes);
+            }
+            flush(out, buf);
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC).putInt(VERSION).putInt(sink.words.size()).putInt(sink.layerSize)
+                    .putLong(vocabOffset).putLong(0L);
+            header.flip();
+            out.write(header, 0);
+            return sink.words.size();
+        }
+    }
+
+    private static void readText(File source, VectorSink sink) throws IOException {
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(openStream(source), StandardCharsets.UTF_8))) {
+            String line;
+            boolean first = true;
+            while ((line = br.readLine()) != null) {
+                String[] parts = line.trim().split(" ");
+                // some text models start with a "vocabSize layerSize" header line
+                if (first && parts.length == 2 && parts[0].matches("\\d+") && parts[1].matches("\\d+")) {
+                    first = false;
+                    continue;
+                }
+                first = false;
+                if (parts.length < 2) {
+                    continue;
+                }
+                float[] vector = new float[parts.length - 1];
+                for (int i = 1; i < parts.length; i++) {
+                    vector[i - 1] = Float.parseFloat(parts[i]);
+                }
+                sink.add(parts[0], vector);
+            }
+        }
+    }
+
+    private static void readWord2VecBinary(File source, VectorSink sink) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(openStream(source), 1 << 16))) {
+            String[] header = readToken(in, '\n').trim().split(" ");
+            int words = Integer.parseInt(header[0]);
+            int size = Integer.parseInt(header[1]);
+            float[] vector = new float[size];
+            for (int w = 0; w < words; w++) {
+                String word = readToken(in, ' ').trim();
+                for (int i = 0; i < size; i++) {
+                    vector[i] = Float.intBitsToFloat(Integer.reverseBytes(in.readInt()));
+                }
+                sink.add(word, vector);
+            }
+        }
+    }
+
+    private static String readToken(DataInputStream in, char delimiter) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != -1 && b != delimiter) {
+            bytes.write(b);
+        }
+        if (b == -1 && bytes.size() == 0) {
+            throw new EOFException();
+        }
+        return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static InputStream openStream(File f) throws IOException {
+        InputStream in = new FileInputStream(f);
+        return f.getName().endsWith(".gz") ? new GZIPInputStream(in, 1 << 16) : in;
+    }
+
+    private static void flush(FileChannel out, ByteBuffer buf) throws IOException {
+        buf.flip();
+        while (buf.hasRemaining()) {
+            out.write(buf);
+        }
+        buf.clear();
+    }
+
+    private static void readFully(FileChannel ch, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            if (ch.read(buf, position + buf.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+    }
+
+    /**
+     * Streams rows to the matrix section of a file being converted, collecting the vocabulary.
+     */
+    private static class VectorSink {
+        final FileChannel out;
+        final List<String> words = new ArrayList<>();
+        final ByteBuffer buf = ByteBuffer.allocate(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+        int layerSize = -1;
+
+        VectorSink(FileChannel out) {
+            this.out = out;
+        }
+
+        void add(String word, float[] vector) throws IOException {
+            if (layerSize < 0) {
+                layerSize = vector.length;
+            } else if (vector.length != layerSize) {
+                throw new IOException("Vector for \"" + word + "\" has " + vector.length
+                        + " values, expected " + layerSize);
+            }
+            if (buf.remaining() < 4 * vector.length) {
+                flush(out, buf);
+            }
+            for (float v : vector) {
+                buf.putFloat(v);
+            }
+            words.add(word);
+        }
+
+        /**
+         * Writes any buffered rows, so the vocabulary section can start right after the matrix.
+         */
+        void finish() throws IOException {
+            flush(out, buf);
+            if (words.isEmpty()) {
+                throw new IOException("No word vectors found");
+            }
+        }
+    }
+
+
+    /**
+     * @return canonical path of the mapped file
+     */
+    public String path() {
+        return path;
+    }
+
+    /**
+     * @return number of words in the model
+     */
+    public int vocabSize() {
+        return vocabSize;
+    }
+
+    /**
+     * @return dimension of the word vectors
+     */
+    public int layerSize() {
+        return layerSize;
+    }
+
+    /**
+     * @return index from word to row
+     */
+    public VocabularyIndex vocabularyIndex() {
+        return wordIndex;
+    }
+
+    /**
+     * @param row word index
+     * @return the word stored at row
+     */
+    public String wordAt(int row) {
+        return words[row];
+    }
+
+    /**
+     * Reads a single vector component without any allocation.
+     *
+     * @param row word index
+     * @param col component, 0 <= col < layerSize
+     */
+    public float get(int row, int col) {
+        return segments[row / rowsPerSegment].get((row % rowsPerSegment) * layerSize + col);
+    }
+
+    /**
+     * Copies the vector of a word into dest.
+     *
+     * @param row    word index
+     * @param dest   destination array
+     * @param offset position in dest of the first component
+     */
+    public void copyRow(int row, float[] dest, int offset) {
+        FloatBuffer segment = segments[row / rowsPerSegment];
+        int base = (row % rowsPerSegment) * layerSize;
+        for (int i = 0; i < layerSize; i++) {
+            dest[offset + i] = segment.get(base + i);
+        }
+    }
+
+    /**
+     * Adds the vector of a word to acc, component by component.
+     *
+     * @param row    word index
+     * @param acc    accumulator
+     * @param offset position in acc of the first component
+     */
+    public void addRow(int row, float[] acc, int offset) {
+        FloatBuffer segment = segments[row / rowsPerSegment];
+        int base = (row % rowsPerSegment) * layerSize;
+        for (int i = 0; i < layerSize; i++) {
+            acc[offset + i] += segment.get(base + i);
+        }
+    }
+
+    private float[] row(int row) {
+        float[] v = new float[layerSize];
+        copyRow(row, v, 0);
+        return v;
+    }
+
+    private static double norm(float[] v) {
+        double sum = 0;
+        for (float x : v) {
+            sum += x * x;
+        }
+        return Math.sqrt(sum);
+    }
+
+    private double cosine(float[] a, double normA, int row) {
+        FloatBuffer segment = segments[row / rowsPerSegment];
+        int base = (row % rowsPerSegment) * layerSize;
+        double dot = 0;
+        double normB = 0;
+        for (int i = 0; i < layerSize; i++) {
+            float b = segment.get(base + i);
+            dot += a[i] * b;
+            normB += b * b;
+        }
+        return normA == 0 || normB == 0 ? 0 : dot / (normA * Math.sqrt(normB));
+    }
+
+    /**
+     * Brute force nearest neighbours by cosine similarity.
+     */
+    private Collection<String> nearest(float[] query, int n, Collection<String> exclude) {
+        double queryNorm = norm(query);
+        PriorityQueue<double[]> best = new PriorityQueue<>(n + 1, new Comparator<double[]>() {
+            @Override
+            public int compare(double[] a, double[] b) {
+                return Double.compare(a[0], b[0]);
+            }
+        });
+        for (int row = 0; row < vocabSize; row++) {
+            if (exclude.contains(words[row])) {
+                continue;
+            }
+            best.add(new double[]{cosine(query, queryNorm, row), row});
+            if (best.size() > n) {
+                best.poll();
+            }
+        }
+        List<String> result = new ArrayList<>(best.size());
+        while (!best.isEmpty()) {
+            result.add(words[(int) best.poll()[1]]);
+        }
+        Collections.reverse(result);
+        return result;
+    }
+
+    private float[] combine(Collection<String> positive, Collection<String> negative, boolean average) {
+        float[] sum = new float[layerSize];
+        int count = 0;
+        for (String word : positive) {
+            int row = indexOf(word);
+            if (row >= 0) {
+                for (int i = 0; i < layerSize; i++) sum[i] += get(row, i);
+                count++;
+            }
+        }
+        for (String word : negative) {
+            int row = indexOf(word);
+            if (row >= 0) {
+                for (int i = 0; i < layerSize; i++) sum[i] -= get(row, i);
+                count++;
+            }
+        }
+        if (average && count > 0) {
+            for (int i = 0; i < layerSize; i++) sum[i] /= count;
+        }
+        return sum;
+    }
+
+    private static float[] toFloats(INDArray vector) {
+        float[] v = new float[vector.length()];
+        for (int i = 0; i < v.length; i++) {
+            v[i] = vector.getFloat(i);
+        }
+        return v;
+    }
+
+    @Override
+    public String getUNK() {
+        return unk;
+    }
+
+    @Override
+    public void setUNK(String newUNK) {
+        unk = newUNK;
+    }
+
+    @Override
+    public boolean hasWord(String word) {
+        return wordIndex.lookup(word) >= 0;
+    }
+
+    @Override
+    public int indexOf(String word) {
+        return wordIndex.lookup(word);
+    }
+
+    @Override
+    public double[] getWordVector(String word) {
+        int row = indexOf(word);
+        if (row < 0) {
+            return null;
+        }
+        double[] v = new double[layerSize];
+        for (int i = 0; i < layerSize; i++) {
+            v[i] = get(row, i);
+        }
+        return v;
+    }
+
+    @Override
+    public INDArray getWordVectorMatrix(String word) {
+        int row = indexOf(word);
+        return row < 0 ? null : Nd4j.create(row(row));
+    }
+
+    @Override
+    public INDArray getWordVectorMatrixNormalized(String word) {
+        int row = indexOf(word);
+        if (row < 0) {
+            return null;
+        }
+        float[] v = row(row);
+        double norm = norm(v);
+        if (norm > 0) {
+            for (int i = 0; i < v.length; i++) v[i] /= norm;
+        }
+        return Nd4j.create(v);
+    }
+
+    @Override
+    public double similarity(String word, String word2) {
+        int a = indexOf(word);
+        int b = indexOf(word2);
+        if (a < 0 || b < 0) {
+            return Double.NaN;
+        }
+        float[] v = row(a);
+        return cosine(v, norm(v), b);
+    }
+
+    @Override
+    public Collection<String> wordsNearest(INDArray words, int top) {
+        return nearest(toFloats(words), top, Collections.<String>emptySet());
+    }
+
+    @Override
+    public Collection<String> wordsNearestSum(INDArray words, int top) {
+        return nearest(toFloats(words), top, Collections.<String>emptySet());
+    }
+
+    @Override
+    public Collection<String> wordsNearestSum(String word, int n) {
+        return wordsNearest(word, n);
+    }
+
+    @Override
+    public Collection<String> wordsNearestSum(Collection<String> positive, Collection<String> negative, int top) {
+        List<String> exclude = new ArrayList<>(positive);
+        exclude.addAll(negative);
+        return nearest(combine(positive, negative, false), top, exclude);
+    }
+
+    @Override
+    public Collection<String> wordsNearest(Collection<String> positive, Collection<String> negative, int top) {
+        List<String> exclude = new ArrayList<>(positive);
+        exclude.addAll(negative);
+        return nearest(combine(positive, negative, true), top, exclude);
+    }
+
+    @Override
+    public Collection<String> wordsNearest(String word, int n) {
+        int row = indexOf(word);
+        if (row < 0) {
+            return Collections.emptyList();
+        }
+        return nearest(row(row), n, Collections.singleton(word));
+    }
+
+    @Override
+    public Map<String, Double> accuracy(List<String> questions) {
+        throw new UnsupportedOperationException("accuracy is not supported by MappedWordVectors");
+    }
+
+    /**
+     * Brute force, by cosine similarity of the word vectors (dl4j's BasicModelUtils compares spellings
+     * instead).
+     *
+     * @return the other words whose vectors have a cosine similarity of at least accuracy with word's, most
+     * similar first; empty if word is not in the vocabulary
+     */
+    @Override
+    public List<String> similarWordsInVocabTo(String word, double accuracy) {
+        final int row = indexOf(word);
+        if (row < 0) {
+            return Collections.emptyList();
+        }
+        float[] query = row(row);
+        double queryNorm = norm(query);
+        List<double[]> similar = new ArrayList<>();
+        for (int other = 0; other < vocabSize; other++) {
+            double similarity = cosine(query, queryNorm, other);
+            if (other != row && similarity >= accuracy) {
+                similar.add(new double[]{similarity, other});
+            }
+        }
+        Collections.sort(similar, new Comparator<double[]>() {
+            @Override
+            public int compare(double[] a, double[] b) {
+                return Double.compare(b[0], a[0]);
+            }
+        });
+        List<String> result = new ArrayList<>(similar.size());
+        for (double[] s : similar) {
+            result.add(words[(int) s[1]]);
+        }
+        return result;
+    }
+
+    /**
+     * @return read-only vocabulary view: words, indices and lookups work, counts are not stored and read 0
+     */
+    @Override
+    public VocabCache<VocabWord> vocab() {
+        return new MappedVocabCache();
+    }
+
+    @Override
+    public WeightLookupTable<SequenceElement> lookupTable() {
+        return new MappedLookupTable();
+    }
+
+    // raw, like the WordVectors method it implements: a ModelUtils<?> parameter would not override it
+    @SuppressWarnings("rawtypes")
+    @Override
+    public void setModelUtils(ModelUtils utils) {
+        throw new UnsupportedOperationException("MappedWordVectors uses its own nearest-neighbour search");
+    }
+
+
+    /**
+     * Minimal lookup table view, so existing code that asks {@code lookupTable().layerSize()} or
+     * {@code lookupTable().vector(word)} keeps working. Everything else is read-only or training only.
+     */
+    private class MappedLookupTable implements WeightLookupTable<SequenceElement> {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public int layerSize() {
+            return layerSize;
+        }
+
+        @Override
+        public INDArray vector(String word) {
+            return getWordVectorMatrix(word);
+        }
+
+        @Override
+        public Iterator<INDArray> vectors() {
+            return new Iterator<INDArray>() {
+                private int row = 0;
+
+                @Override
+                public boolean hasNext() {
+                    return row < vocabSize;
+                }
+
+                @Override
+                public INDArray next() {
+                    return Nd4j.create(row(row++));
+                }
+
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+
+        @Override
+        public Long getTableId() {
+            return (long) path.hashCode();
+        }
+
+        @Override
+        public void setTableId(Long tableId) {
+            throw readOnly();
+        }
+
+        @Override
+        public double getGradient(int column, double gradient) {
+            throw readOnly();
+        }
+
+        @Override
+        public void resetWeights(boolean reset) {
+            throw readOnly();
+        }
+
+        @Override
+        public void plotVocab(Tsne tsne, int numWords, UiConnectionInfo connectionInfo) {
+            throw unsupported();
+        }
+
+        @Override
+        public void plotVocab(Tsne tsne, int numWords, File file) {
+            throw unsupported();
+        }
+
+        @Override
+        public void plotVocab(int numWords, UiConnectionInfo connectionInfo) {
+            throw unsupported();
+        }
+
+        @Override
+        public void plotVocab(int numWords, File file) {
+            throw unsupported();
+        }
+
+        @Override
+        public void putCode(int codeIndex, INDArray code) {
+            throw readOnly();
+        }
+
+        @Override
+        public INDArray loadCodes(int[] codes) {
+            throw unsupported();
+        }
+
+        @Deprecated
+        @Override
+        public void iterate(SequenceElement w1, SequenceElement w2) {
+            throw readOnly();
+        }
+
+        @Deprecated
+        @Override
+        public void iterateSample(SequenceElement w1, SequenceElement w2, AtomicLong nextRandom, double alpha) {
+            throw readOnly();
+        }
+
+        @Override
+        public void putVector(String word, INDArray vector) {
+            throw readOnly();
+        }
+
+        @Override
+        public void resetWeights() {
+            throw readOnly();
+        }
+
+        @Override
+        public void setLearningRate(double lr) {
+            throw readOnly();
+        }
+
+        @Override
+        public INDArray getWeights() {
+            throw unsupported();
+        }
+
+        @Override
+        public VocabCache<SequenceElement> getVocabCache() {
+            throw unsupported();
+        }
+
+        private UnsupportedOperationException readOnly() {
+            return new UnsupportedOperationException("MappedWordVectors is read-only");
+        }
+
+        private UnsupportedOperationException unsupported() {
+            return new UnsupportedOperationException("Not supported by MappedWordVectors");
+        }
+    }
+
+
+    /**
+     * Read-only VocabCache view of the vocabulary, so generic WordVectors code that asks
+     * {@code vocab().words()}, {@code vocab().indexOf(word)} or {@code vocab().wordAtIndex(i)} keeps working.
+     * The file stores no counts, so frequencies and document counts are 0; everything that would change
+     * the vocabulary throws.
+     */
+    private class MappedVocabCache implements VocabCache<VocabWord> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final List<VocabWord> elements = new AbstractList<VocabWord>() {
+            @Override
+            public VocabWord get(int index) {
+                return element(index);
+            }
+
+            @Override
+            public int size() {
+                return vocabSize;
+            }
+        };
+
+        private VocabWord element(int index) {
+            VocabWord element = new VocabWord(0, words[index]);
+            element.setIndex(index);
+            return element;
+        }
+
+        @Override
+        public void loadVocab() {
+        }
+
+        @Override
+        public boolean vocabExists() {
+            return true;
+        }
+
+        @Override
+        public void saveVocab() {
+            throw readOnly();
+        }
+
+        @Override
+        public Collection<String> words() {
+            return Collections.unmodifiableList(Arrays.asList(words));
+        }
+
+        @Override
+        public void incrementWordCount(String word) {
+            throw readOnly();
+        }
+
+        @Override
+        public void incrementWordCount(String word, int increment) {
+            throw readOnly();
+        }
+
+        @Override
+        public int wordFrequency(String word) {
+            return 0;
+        }
+
+        @Override
+        public boolean containsWord(String word) {
+            return hasWord(word);
+        }
+
+        @Override
+        public String wordAtIndex(int index) {
+            return index >= 0 && index < vocabSize ? words[index] : null;
+        }
+
+        @Override
+        public VocabWord elementAtIndex(int index) {
+            return index >= 0 && index < vocabSize ? element(index) : null;
+        }
+
+        @Override
+        public int indexOf(String word) {
+            return MappedWordVectors.this.indexOf(word);
+        }
+
+        @Override
+        public Collection<VocabWord> vocabWords() {
+            return elements;
+        }
+
+        @Override
+        public long totalWordOccurrences() {
+            return 0;
+        }
+
+        @Override
+        public VocabWord wordFor(String word) {
+            int index = indexOf(word);
+            return index < 0 ? null : element(index);
+        }
+
+        @Override
+        public void addWordToIndex(int index, String word) {
+            throw readOnly();
+        }
+
+        @Deprecated
+        @Override
+        public void putVocabWord(String word) {
+            throw readOnly();
+        }
+
+        @Override
+        public int numWords() {
+            return vocabSize;
+        }
+
+        @Override
+        public int docAppearedIn(String word) {
+            return 0;
+        }
+
+        @Override
+        public void incrementDocCount(String word, int howMuch) {
+            throw readOnly();
+        }
+
+        @Override
+        public void setCountForDoc(String word, int count) {
+            throw readOnly();
+        }
+
+        @Override
+        public int totalNumberOfDocs() {
+            return 0;
+        }
+
+        @Override
+        public void incrementTotalDocCount() {
+            throw readOnly();
+        }
+
+        @Override
+        public void incrementTotalDocCount(int by) {
+            throw readOnly();
+        }
+
+        @Override
+        public Collection<VocabWord> tokens() {
+            return elements;
+        }
+
+        @Override
+        public void addToken(VocabWord element) {
+            throw readOnly();
+        }
+
+        @Override
+        public VocabWord tokenFor(String word) {
+            return wordFor(word);
+        }
+
+        @Override
+        public boolean hasToken(String token) {
+            return hasWord(token);
+        }
+
+        @Override
+        public void importVocabulary(VocabCache<VocabWord> vocabCache) {
+            throw readOnly();
+        }
+
+        @Override
+        public void updateWordsOccurencies() {
+            throw readOnly();
+        }
+
+        @Override
+        public void removeElement(String label) {
+            throw readOnly();
+        }
+
+        @Override
+        public void removeElement(VocabWord element) {
+            throw readOnly();
+        }
+
+        private UnsupportedOperationException readOnly() {
+            return new UnsupportedOperationException("MappedWordVectors is read-only");
+        }
+    }
+
+
+    /**
+     * Converts a text or word2vec binary model into the mapped binary format.
+     *
+     * @param args source model, target file
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("Usage: MappedWordVectors <source model (.txt, .bin, .bin.gz)> <target file>");
+            System.exit(1);
+        }
+        long start = System.nanoTime();
+        int n = convert(new File(args[0]), new File(args[1]));
+        System.out.println(String.format("Converted %d words in %.1f s", n, (System.nanoTime() - start) / 1e9));
+
+        start = System.nanoTime();
+        MappedWordVectors vectors = open(new File(args[1]));
+        System.out.println(String.format("Opened %d x %d model in %.1f ms", vectors.vocabSize(),
+                vectors.layerSize(), (System.nanoTime() - start) / 1e6));
+    }
+}
@@ -4,11 +4,9 @@ import org.deeplearning4j.datasets.iterator.DataSetIterator;
 import org.nd4j.linalg.api.ndarray.INDArray;
 import org.nd4j.linalg.dataset.DataSet;
 import org.nd4j.linalg.dataset.api.DataSetPreProcessor;
-import org.nd4j.linalg.factory.Nd4j;
-import org.nd4j.linalg.indexing.INDArrayIndex;
-import org.nd4j.linalg.indexing.NDArrayIndex;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.NoSuchElementException;
@@ -28,8 +26,14 @@ public class MultiClassIterator implements DataSetIterator {
     private int batchSize;
     private List<String> reviewsToIterate;
     private int cursor;
-    private int vectorSize = 100;
-    private int maxLength = 50;
+    private BatchAssembler assembler;
+    private int bufferDepth = BatchAssembler.DEFAULT_DEPTH;
+
+    private BatchSampler sampler;
+    private int epoch;
+    private List<int[]> plan;
+    private int planBatch;
+    private final PaddingStats padding = new PaddingStats();
 
 
     /**
@@ -42,9 +46,20 @@ public class MultiClassIterator implements DataSetIterator {
      * @throws IOException
      */
     public MultiClassIterator(DataSetManager dataSetManager, int fromIndex, int toIndex, int batchSize) {
+        this(dataSetManager, dataSetManager.shuffledRevIDs.subList(fromIndex, toIndex), batchSize);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param dataSetManager    contains the actual Review objects needed to create data sets
+     * @param reviewIDs         IDs of the reviews to iterate over, in order, e.g. a ReviewSplits view; not copied
+     * @param batchSize         mini-batch size
+     */
+    public MultiClassIterator(DataSetManager dataSetManager, List<String> reviewIDs, int batchSize) {
         dm = dataSetManager;
         this.batchSize = batchSize;
-        reviewsToIterate = dm.shuffledRevIDs.subList(fromIndex, toIndex);
+        reviewsToIterate = reviewIDs;
     }
 
 
@@ -63,60 +78,54 @@ public class MultiClassIterator implements DataSetIterator {
     }
 
     /**
-     * Helper function for above.
+     * Helper function for above. The batch is written into recycled buffers by the BatchAssembler, so
+     * it is only valid until the next call after this one.
      *
      * @param num == batchSize
      * @return
      */
     private DataSet nextDataSet(int num) {
 
-        // create data for training
-        INDArray features = Nd4j.create(new int[]{num, vectorSize, maxLength}, 'f');
-        INDArray labels = Nd4j.create(num, 8, maxLength);
-        
-
          /*
          Need to pad features and labels arrays with masks because the network is expecting a time series input of a certain
          time length. Reviews vary in the # of sentences they contain, so we pad short ones with 0's.
          Also, we pad the output to time it so that it arrives simultaneously with the end of the input series.
          Mask arrays contain 1 if data is present at that time step for that example, or 0 if data is just padding
          */
-        INDArray featuresMask = Nd4j.zeros(num, maxLength);
-        INDArray labelsMask = Nd4j.zeros(num, maxLength);
-
-        for (int i = 0; i < batchSize && cursor < reviewsToIterate.size(); ++i, ++cursor) {
-            Review rev = dm.reviews.get(reviewsToIterate.get(cursor));
-            INDArray revVectors = rev.reviewVecs.dup().transpose();
-
-            features.put(new INDArrayIndex[]{
-                    NDArrayIndex.point(i),
-                    NDArrayIndex.all(),
-                    NDArrayIndex.interval(0, revVectors.shape()[1])}, revVectors);
-            featuresMask.put(new INDArrayIndex[]{NDArrayIndex.interval(0, revVectors.shape()[1] - 1)}, 1.0);
-            featuresMask.put(new INDArrayIndex[]{NDArrayIndex.interval(0, revVectors.shape()[1])}, 1.0);
-
-            int revScore = rev.score;
-//            int lastIdx = Math.min(revVectors.size(), maxLength);
-            labels.put(new INDArrayIndex[]{
-                    NDArrayIndex.point(i),
-                    NDArrayIndex.all(),
-                    NDArrayIndex.point(revVectors.shape()[1] - 1)}, oneHot(revScore));
-            labelsMask.putScalar(revVectors.shape()[1] - 1, 1.0);
-        }
-
-//        System.out.println("features: " + features);
-//        System.out.println("labels: " +labels);
-//        System.out.println("featuresMask: " + featuresMask);
-//        System.out.println("labelsMask: " + labelsMask + "\n");
 
+        // fetch the whole batch at once, so that in streaming mode the shards are read in on-disk order
+        List<String> batchIDs;
+        if (plan == null) {
+            batchIDs = reviewsToIterate.subList(cursor, Math.min(cursor + num, reviewsToIterate.size()));
+        } else {
+            int[] batch = plan.get(planBatch++);
+            batchIDs = new ArrayList<>(batch.length);
+            for (int index : batch) {
+                batchIDs.add(reviewsToIterate.get(index));
+            }
+        }
+        INDArray[] batchVectors = dm.vectorsOf(batchIDs);
+
+        int[] classes = new int[batchVectors.length];
+        int[] lengths = new int[batchVectors.length];
+        int maxLength = 0;
+        for (int i = 0; i < classes.length; i++) {
+            classes[i] = classIndex(dm.scoreOf(batchIDs.get(i)));
+            lengths[i] = batchVectors[i].rows();
+            maxLength = Math.max(maxLength, lengths[i]);
+        }
+        padding.record(lengths, lengths.length, maxLength);
+        cursor += batchIDs.size();
 
-        DataSet result = new DataSet(features, labels, featuresMask, labelsMask);
-        return result;
-
+        if (assembler == null) {
+            assembler = new BatchAssembler(inputColumns(), totalOutcomes(), bufferDepth);
+        }
+        return assembler.assemble(batchVectors, classes);
     }
 
     /**
-     * Helper method to turn a movie rating score into a one-hot vector.
+     * Helper method to turn a movie rating score into the index of its class, i.e. the position of the 1
+     * in its one-hot vector.
      *    1 -> [ 1 0 0 0 0 0 0 0 ]
      *    2 -> [ 0 1 0 0 0 0 0 0 ]
      *    3 -> [ 0 0 1 0 0 0 0 0 ]
@@ -125,39 +134,31 @@ public class MultiClassIterator implements DataSetIterator {
      *    8 -> [ 0 0 0 0 0 1 0 0 ]
      *    9 -> [ 0 0 0 0 0 0 1 0 ]
      *   10 -> [ 0 0 0 0 0 0 0 1 ]
-     * 
+     *
      * @param score
-     * @return
+     * @return class index, or -1 for a score that is not one of the above
      */
-    private INDArray oneHot(int score) {
-        INDArray label = Nd4j.zeros(8);
+    private static int classIndex(int score) {
         switch (score) {
             case 1:
-                label.putScalar(0, 1.0);
-                break;
+                return 0;
             case 2:
-                label.putScalar(1, 1.0);
-                break;
+                return 1;
             case 3:
-                label.putScalar(2, 1.0);
-                break;
+                return 2;
             case 4:
-                label.putScalar(3, 1.0);
-                break;
+                return 3;
             case 7:
-                label.putScalar(4, 1.0);
-                break;
+                return 4;
             case 8:
-                label.putScalar(5, 1.0);
-                break;
+                return 5;
             case 9:
-                label.putScalar(6, 1.0);
-                break;
+                return 6;
             case 10:
-                label.putScalar(7, 1.0);
-                break;
+                return 7;
+            default:
+                return -1;
         }
-        return label;
     }
 
     @Override
@@ -167,7 +168,7 @@ public class MultiClassIterator implements DataSetIterator {
 
     @Override
     public int inputColumns() {
-        return vectorSize;
+        return dm.vectorSize();
     }
 
     @Override
@@ -177,7 +178,77 @@ public class MultiClassIterator implements DataSetIterator {
 
     @Override
     public void reset() {
+        if (padding.batches() > 0) {
+            System.out.println("Epoch " + epoch + ": " + padding.summary());
+            padding.reset();
+            epoch++;
+        }
+        cursor = 0;
+        plan();
+    }
+
+    /**
+     * Sets how reviews are grouped into batches, e.g. a LengthBucketSampler over sentenceLengths() to cut
+     * padding. With a sampler, every batch is the next one of the sampler's plan for the current epoch (the
+     * num argument of next(num) is ignored), and a new plan is made at every reset. Restarts the current epoch.
+     *
+     * @param sampler batch sampler over positions 0 ... totalExamples() - 1, or null for batches in order
+     */
+    public void setBatchSampler(BatchSampler sampler) {
+        this.sampler = sampler;
+        cursor = 0;
+        plan();
+    }
+
+    /**
+     * Starts an epoch other than the next one, e.g. to resume training from a checkpoint: with a sampler,
+     * the batches are those of that epoch's plan.
+     *
+     * @param epoch epoch to start
+     */
+    public void setEpoch(int epoch) {
+        this.epoch = epoch;
         cursor = 0;
+        padding.reset();
+        plan();
+    }
+
+    /**
+     * Sets how many batches stay valid at once. Batches are assembled into recycled buffers, so a batch is
+     * overwritten depth batches later; the default of 2 suits fit and evaluation loops, a prefetching
+     * wrapper needs more than the number of batches it holds.
+     *
+     * @param depth number of recycled buffer sets, at least 1
+     */
+    public void setBufferDepth(int depth) {
+        if (depth < 1) {
+            throw new IllegalArgumentException("depth must be at least 1");
+        }
+        bufferDepth = depth;
+        assembler = null;
+    }
+
+    /**
+     * @return number of sentences of each review, in iteration order
+     */
+    public int[] sentenceLengths() {
+        int[] lengths = new int[reviewsToIterate.size()];
+        for (int i = 0; i < lengths.length; i++) {
+            lengths[i] = dm.sentenceCount(reviewsToIterate.get(i));
+        }
+        return lengths;
+    }
+
+    /**
+     * @return padding efficiency of the batches of the current epoch so far
+     */
+    public PaddingStats paddingStats() {
+        return padding;
+    }
+
+    private void plan() {
+        planBatch = 0;
+        plan = sampler == null ? null : sampler.batches(epoch);
     }
 
     @Override
@@ -0,0 +1,272 @@
+package cs517.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A whole review corpus in one memory-mapped file, with an offset index and labels, so reading a review is
+ * a lookup in the index and a decode of its bytes instead of an open and a read of a small file.
+ * <p>
+ * File layout (little-endian):
+ *      header  magic (int), version (int), reviews (int), reserved (int), index offset (long), reserved (long)
+ *      data    for each review, its id and its text, both UTF-8
+ *      index   for each review: data offset (long), text length (int), id length (short), polarity (byte),
+ *              score (byte)
+ * <p>
+ * Usage:
+ * <p>
+ * PackedCorpus.pack(new AclImdbDirectory(dataDirectory, true), new File("aclImdb-train.pack"));
+ * PackedCorpus.packMaas(new File("labeledTrainData.tsv"), new File("labeledTrainData.pack"));
+ * PackedCorpus corpus = PackedCorpus.open(new File("aclImdb-train.pack"));
+ * String text = corpus.text(0);
+ * <p>
+ * From the command line: PackedCorpus &lt;aclImdb parent directory | Maas .tsv file&gt; ... &lt;output prefix&gt;
+ */
+public final class PackedCorpus implements ReviewSource {
+
+    private static final int MAGIC = 0x504b4331;    // "PKC1"
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 32;
+    private static final int INDEX_ENTRY_BYTES = 16;
+
+    private final File file;
+    private final ByteBuffer data;
+    private final int size;
+    private final int indexOffset;
+
+
+    private PackedCorpus(File file, ByteBuffer data) throws IOException {
+        this.file = file;
+        this.data = data;
+        if (data.getInt(0) != MAGIC || data.getInt(4) != VERSION) {
+            throw new IOException(file + " is not a packed corpus");
+        }
+        this.size = data.getInt(8);
+        long index = data.getLong(16);
+        if (index + (long) size * INDEX_ENTRY_BYTES > data.capacity()) {
+            throw new IOException(file + " is truncated");
+        }
+        this.indexOffset = (int) index;
+    }
+
+    /**
+     * Memory-maps a packed corpus.
+     *
+     * @param f file written by pack or packMaas, smaller than 2GB
+     */
+    public static PackedCorpus open(File f) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(f, "r"); FileChannel ch = raf.getChannel()) {
+            if (ch.size() > Integer.MAX_VALUE) {
+                throw new IOException(f + " is too large to map (" + ch.size() + " bytes)");
+            }
+            ByteBuffer mapped = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+            return new PackedCorpus(f, mapped.order(ByteOrder.LITTLE_ENDIAN));
+        }
+    }
+
+    /**
+     * Packs every review of a source, in the source's order.
+     *
+     * @param source reviews to pack, e.g. an AclImdbDirectory
+     * @param target packed corpus file; overwritten
+     * @return number of reviews packed
+     */
+    public static int pack(ReviewSource source, File target) throws IOException {
+        try (Writer w = new Writer(target)) {
+            for (int i = 0; i < source.size(); i++) {
+                w.add(source.id(i), source.text(i), source.polarity(i), source.score(i));
+            }
+            return w.count;
+        }
+    }
+
+    /**
+     * Packs a Maas TSV file, in file order.
+     *
+     * @param tsv    labeled or unlabeled Maas review file
+     * @param target packed corpus file; overwritten
+     * @return number of reviews packed
+     */
+    public static int packMaas(File tsv, File target) throws IOException {
+        MaasTsvParser parser = MaasTsvParser.open(tsv);
+        ByteBuffer buf = parser.buffer();
+        parser.skipLine();   // header
+        MaasTsvParser.Record r = new MaasTsvParser.Record();
+        try (Writer w = new Writer(target)) {
+            while (parser.next(r)) {
+                w.add(r.id(buf), r.text(buf), r.polarity(), r.score());
+            }
+            return w.count;
+        }
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public String id(int index) {
+        int entry = entry(index);
+        return decode(data.getLong(entry), data.getShort(entry + 12) & 0xffff);
+    }
+
+    @Override
+    public String text(int index) {
+        int entry = entry(index);
+        long offset = data.getLong(entry) + (data.getShort(entry + 12) & 0xffff);
+        return decode(offset, data.getInt(entry + 8));
+    }
+
+    @Override
+    public int polarity(int index) {
+        return data.get(entry(index) + 14);
+    }
+
+    @Override
+    public int score(int index) {
+        return data.get(entry(index) + 15);
+    }
+
+    /**
+     * @param index 0 <= index < size()
+     * @return true if the review is labeled positive
+     */
+    public boolean isPositive(int index) {
+        return polarity(index) == 1;
+    }
+
+    /**
+     * @return the packed file
+     */
+    public File file() {
+        return file;
+    }
+
+    private int entry(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Review " + index + " of " + size);
+        }
+        return indexOffset + index * INDEX_ENTRY_BYTES;
+    }
+
+    private String decode(long offset, int length) {
+        ByteBuffer slice = data.duplicate();
+        slice.limit((int) offset + length).position((int) offset);
+        return StandardCharsets.UTF_8.decode(slice).toString();
+    }
+
+
+    /**
+     * Streams reviews into the data section and keeps the index in memory until close.
+     */
+    private static final class Writer implements AutoCloseable {
+        private final FileChannel ch;
+        private final ByteBuffer out = ByteBuffer.allocate(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+        private ByteBuffer index = ByteBuffer.allocate(INDEX_ENTRY_BYTES * 1024).order(ByteOrder.LITTLE_ENDIAN);
+        private long position = HEADER_BYTES;
+        int count;
+
+        Writer(File target) throws IOException {
+            RandomAccessFile raf = new RandomAccessFile(target, "rw");
+            raf.setLength(0);
+            ch = raf.getChannel();
+            ch.position(HEADER_BYTES);
+        }
+
+        void add(String id, String text, int polarity, int score) throws IOException {
+            byte[] idBytes = id.getBytes(StandardCharsets.UTF_8);
+            byte[] textBytes = text.getBytes(StandardCharsets.UTF_8);
+            if (idBytes.length > 0xffff) {
+                throw new IOException("Review id too long: " + id);
+            }
+            if (index.remaining() < INDEX_ENTRY_BYTES) {
+                ByteBuffer bigger = ByteBuffer.allocate(2 * index.capacity()).order(ByteOrder.LITTLE_ENDIAN);
+                index.flip();
+                index = bigger.put(index);
+            }
+            index.putLong(position).putInt(textBytes.length).putShort((short) idBytes.length)
+                    .put((byte) polarity).put((byte) score);
+            write(idBytes);
+            write(textBytes);
+            count++;
+        }
+
+        private void write(byte[] bytes) throws IOException {
+            int done = 0;
+            while (done < bytes.length) {
+                if (!out.hasRemaining()) {
+                    drain(out);
+                }
+                int n = Math.min(out.remaining(), bytes.length - done);
+                out.put(bytes, done, n);
+                done += n;
+            }
+            position += bytes.length;
+        }
+
+        private void drain(ByteBuffer buf) throws IOException {
+            buf.flip();
+            while (buf.hasRemaining()) {
+                ch.write(buf);
+            }
+            buf.clear();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                if (position > Integer.MAX_VALUE) {
+                    throw new IOException("Packed corpus would exceed 2GB");
+                }
+                drain(out);
+                drain(index);
+
+                ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+                header.putInt(MAGIC).putInt(VERSION).putInt(count).putInt(0).putLong(position).putLong(0);
+                header.flip();
+                while (header.hasRemaining()) {
+                    ch.write(header, header.position());
+                }
+            } finally {
+                ch.close();
+            }
+        }
+    }
+
+    /**
+     * Packs aclImdb directories or Maas TSV files.
+     *
+     * @param args inputs (the directory aclImdb was extracted into, or .tsv files), then an output prefix.
+     *             A directory gives prefix-train.pack and prefix-test.pack; a .tsv gives prefix-name.pack.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.out.println("Usage: PackedCorpus <aclImdb parent directory | Maas .tsv> ... <output prefix>");
+            return;
+        }
+        String prefix = args[args.length - 1];
+        for (int i = 0; i < args.length - 1; i++) {
+            File in = new File(args[i]);
+            long start = System.nanoTime();
+            if (in.isDirectory()) {
+                for (boolean train : new boolean[]{true, false}) {
+                    File out = new File(prefix + "-" + (train ? "train" : "test") + ".pack");
+                    int n = pack(new AclImdbDirectory(in.getPath(), train), out);
+                    System.out.println("Packed " + n + " reviews into " + out);
+                }
+            } else {
+                String name = in.getName().replaceFirst("\\.tsv$", "");
+                File out = new File(prefix + "-" + name + ".pack");
+                int n = packMaas(in, out);
+                System.out.println("Packed " + n + " reviews into " + out);
+            }
+            System.out.println(String.format("%s packed in %.1f s", in, (System.nanoTime() - start) / 1e9));
+        }
+    }
+}
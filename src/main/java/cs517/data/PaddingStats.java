@@ -0,0 +1,54 @@
+package cs517.data;
+
+/**
+ * Measures how much of the time steps of padded time series batches hold real data:
+ * efficiency = real time steps / allocated time steps, where a batch of n examples padded to length T
+ * allocates n x T time steps. Everything else is masked padding the network still computes on.
+ */
+public class PaddingStats {
+
+    private long batches;
+    private long realSteps;
+    private long allocatedSteps;
+
+
+    /**
+     * Records one batch.
+     *
+     * @param lengths length of each example in the batch, after truncation
+     * @param count   number of examples in the batch
+     * @param padded  length the batch was padded to
+     */
+    public void record(int[] lengths, int count, int padded) {
+        for (int i = 0; i < count; i++) {
+            realSteps += Math.min(lengths[i], padded);
+        }
+        allocatedSteps += (long) count * padded;
+        batches++;
+    }
+
+    /**
+     * @return real time steps / allocated time steps, or 1 if nothing has been recorded
+     */
+    public double efficiency() {
+        return allocatedSteps == 0 ? 1.0 : (double) realSteps / allocatedSteps;
+    }
+
+    public long batches() {
+        return batches;
+    }
+
+    /**
+     * @return one-line summary
+     */
+    public String summary() {
+        return String.format("Padding efficiency: %.1f%% (%d real of %d allocated time steps in %d batches)",
+                100 * efficiency(), realSteps, allocatedSteps, batches);
+    }
+
+    public void reset() {
+        batches = 0;
+        realSteps = 0;
+        allocatedSteps = 0;
+    }
+}
@@ -0,0 +1,442 @@
+package cs517.data;
+
+import org.deeplearning4j.datasets.iterator.DataSetIterator;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.DataSetPreProcessor;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Wraps a DataSetIterator so that batches are produced ahead of the consumer by several producer threads,
+ * into a bounded queue. Unlike AsyncDataSetIterator (one producer, one batch ahead), the queue holds up to
+ * depth batches and at most maxQueuedBytes of arrays, so big batches do not pile up in memory.
+ * <p>
+ * Producers take turns calling the wrapped iterator, which does not need to be thread-safe; what runs in
+ * parallel is everything after that: the preprocessor, and any work the wrapped iterator does in threads of
+ * its own (e.g. SentimentIterator's workers). Batches are handed out in the wrapped iterator's order.
+ * <p>
+ * reset() may be called at any time, e.g. in the middle of an epoch: batches of the old epoch that are
+ * queued or still being made are dropped, and the wrapped iterator is reset once no producer uses it.
+ * <p>
+ * Iterators that recycle their buffers (MultiClassIterator) must keep more than depth batches valid, see
+ * MultiClassIterator.setBufferDepth.
+ * <p>
+ * The stats tell which side is the bottleneck: producers waiting on a full queue means the consumer
+ * (e.g. net.fit) is slower, the consumer starving on an empty queue means the data preparation is.
+ * <p>
+ * Usage:
+ * <p>
+ * PrefetchingIterator train = new PrefetchingIterator(iterator, 2, 8, 256L << 20);
+ * net.fit(train);
+ * System.out.println(train.summary());
+ */
+public class PrefetchingIterator implements DataSetIterator {
+
+    private static final long serialVersionUID = 1L;
+    private static final AtomicInteger INSTANCES = new AtomicInteger();
+
+    private final DataSetIterator base;
+    private final int depth;
+    private final long maxQueuedBytes;
+    private DataSetPreProcessor preProcessor;
+
+    /** guards every field below, except those only used under baseLock */
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    /** bumped by reset; batches made for an older generation are dropped */
+    private volatile long generation;
+    /** batches by sequence number, waiting for the consumer */
+    private final Map<Long, DataSet> queued = new HashMap<>();
+    private long queuedBytes;
+    /** batches claimed from the wrapped iterator but not queued yet */
+    private int inFlight;
+    /** sequence number of the next batch to hand out */
+    private long nextOut;
+    /** number of examples handed out since the last reset */
+    private int cursor;
+    /** once the wrapped iterator has no more batches, the number of batches of this generation */
+    private long total = -1;
+    /** set once a producer fails, until the next reset */
+    private RuntimeException failure;
+    /** set while reset waits for the wrapped iterator */
+    private boolean resetting;
+    private boolean closed;
+
+    /** serializes calls to the wrapped iterator */
+    private final Object baseLock = new Object();
+    private long nextSeq;
+
+    private long producerWaitNanos;
+    private long consumerWaitNanos;
+    private long batchesOut;
+    private long occupancySum;
+
+
+    /**
+     * @param base           iterator to prefetch from
+     * @param producers      number of producer threads
+     * @param depth          maximum number of batches queued or being made
+     * @param maxQueuedBytes maximum size of the arrays of the queued batches; a single bigger batch is let
+     *                       through, so the queue never stalls
+     */
+    public PrefetchingIterator(DataSetIterator base, int producers, int depth, long maxQueuedBytes) {
+        if (producers < 1 || depth < 1) {
+            throw new IllegalArgumentException("producers and depth must be at least 1");
+        }
+        this.base = base;
+        this.depth = depth;
+        this.maxQueuedBytes = maxQueuedBytes;
+        ThreadFactory factory = new ProducerThreadFactory(INSTANCES.incrementAndGet());
+        for (int i = 0; i < producers; i++) {
+            factory.newThread(new Producer()).start();
+        }
+    }
+
+    /**
+     * Makes batches until the iterator is shut down: claims the next batch of the wrapped iterator, if the
+     * queue has room, and queues it unless a reset happened in the meantime.
+     */
+    private class Producer implements Runnable {
+        @Override
+        public void run() {
+            while (true) {
+                long gen;
+                lock.lock();
+                try {
+                    while (true) {
+                        if (closed) {
+                            return;
+                        }
+                        if (resetting || total >= 0 || failure != null) {
+                            changed.awaitUninterruptibly();     // idle until the next reset
+                        } else if (queued.size() + inFlight >= depth || (queuedBytes >= maxQueuedBytes && !queued.isEmpty())) {
+                            long start = System.nanoTime();
+                            changed.awaitUninterruptibly();     // backpressure
+                            producerWaitNanos += System.nanoTime() - start;
+                        } else {
+                            break;
+                        }
+                    }
+                    gen = generation;
+                    inFlight++;
+                } finally {
+                    lock.unlock();
+                }
+
+                long seq = -1;
+                DataSet ds = null;
+                RuntimeException error = null;
+                try {
+                    synchronized (baseLock) {
+                        if (gen == generation && base.hasNext()) {
+                            seq = nextSeq++;
+                            ds = base.next();
+                        } else if (gen == generation) {
+                            seq = nextSeq;
+                        }
+                    }
+                    if (ds != null && preProcessor != null) {
+                        preProcessor.preProcess(ds);
+                    }
+                } catch (RuntimeException e) {
+                    error = e;
+                }
+
+                lock.lock();
+                try {
+                    if (gen != generation) {
+                        continue;   // reset while this batch was being made: inFlight has been cleared
+                    }
+                    inFlight--;
+                    if (error != null) {
+                        failure = error;
+                    } else if (ds == null) {
+                        if (seq >= 0) {
+                            total = seq;
+                        }
+                    } else {
+                        queued.put(seq, ds);
+                        queuedBytes += bytesOf(ds);
+                    }
+                    changed.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        lock.lock();
+        try {
+            return awaitNext();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Waits until the next batch is queued or known not to exist. Call with the lock held. */
+    private boolean awaitNext() {
+        long start = System.nanoTime();
+        try {
+            while (true) {
+                if (failure != null) {
+                    throw new RuntimeException("Producer failed; reset to start over", failure);
+                }
+                if (queued.containsKey(nextOut)) {
+                    return true;
+                }
+                if (total >= 0 && nextOut >= total) {
+                    return false;
+                }
+                if (closed) {
+                    throw new IllegalStateException("Iterator has been shut down");
+                }
+                changed.awaitUninterruptibly();
+            }
+        } finally {
+            consumerWaitNanos += System.nanoTime() - start;
+        }
+    }
+
+    @Override
+    public DataSet next() {
+        lock.lock();
+        try {
+            if (!awaitNext()) {
+                throw new NoSuchElementException();
+            }
+            occupancySum += queued.size();
+            batchesOut++;
+            DataSet ds = queued.remove(nextOut++);
+            queuedBytes -= bytesOf(ds);
+            cursor += ds.numExamples();
+            changed.signalAll();
+            return ds;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Batches are made ahead of time with the wrapped iterator's batch size, so num must be that size.
+     */
+    @Override
+    public DataSet next(int num) {
+        if (num != batch()) {
+            throw new UnsupportedOperationException("Prefetched batches have " + batch() + " examples, not " + num);
+        }
+        return next();
+    }
+
+    /**
+     * Drops every batch made so far, resets the wrapped iterator and starts over. Does nothing if no batch
+     * has been handed out since the last reset, so the batches made ahead are kept.
+     */
+    @Override
+    public void reset() {
+        lock.lock();
+        try {
+            if (nextOut == 0 && failure == null && !resetting) {
+                return;
+            }
+            generation++;
+            queued.clear();
+            queuedBytes = 0;
+            inFlight = 0;
+            nextOut = 0;
+            cursor = 0;
+            total = -1;
+            failure = null;
+            resetting = true;
+        } finally {
+            lock.unlock();
+        }
+        synchronized (baseLock) {
+            base.reset();
+            nextSeq = 0;
+        }
+        lock.lock();
+        try {
+            resetting = false;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stops the producer threads. The iterator cannot be used afterwards.
+     */
+    public void shutdown() {
+        lock.lock();
+        try {
+            closed = true;
+            queued.clear();
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return number of batches currently queued
+     */
+    public int occupancy() {
+        lock.lock();
+        try {
+            return queued.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return total time producers spent waiting for room in the queue, in nanoseconds
+     */
+    public long producerWaitNanos() {
+        lock.lock();
+        try {
+            return producerWaitNanos;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return total time the consumer spent waiting for a batch, in nanoseconds
+     */
+    public long consumerWaitNanos() {
+        lock.lock();
+        try {
+            return consumerWaitNanos;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return one-line summary of the queue since the last resetStats
+     */
+    public String summary() {
+        lock.lock();
+        try {
+            return String.format("Prefetch: %d batches, mean queue %.2f of %d, producers waited %.1f ms, consumer starved %.1f ms",
+                    batchesOut, batchesOut == 0 ? 0.0 : (double) occupancySum / batchesOut, depth,
+                    producerWaitNanos / 1e6, consumerWaitNanos / 1e6);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Zeroes the stats, e.g. at the start of an epoch.
+     */
+    public void resetStats() {
+        lock.lock();
+        try {
+            producerWaitNanos = 0;
+            consumerWaitNanos = 0;
+            batchesOut = 0;
+            occupancySum = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static long bytesOf(DataSet ds) {
+        return bytesOf(ds.getFeatureMatrix()) + bytesOf(ds.getLabels())
+                + bytesOf(ds.getFeaturesMaskArray()) + bytesOf(ds.getLabelsMaskArray());
+    }
+
+    private static long bytesOf(INDArray a) {
+        return a == null ? 0 : (long) a.length() * a.data().getElementSize();
+    }
+
+    @Override
+    public int totalExamples() {
+        return base.totalExamples();
+    }
+
+    @Override
+    public int inputColumns() {
+        return base.inputColumns();
+    }
+
+    @Override
+    public int totalOutcomes() {
+        return base.totalOutcomes();
+    }
+
+    @Override
+    public int batch() {
+        return base.batch();
+    }
+
+    /**
+     * @return number of examples handed out since the last reset; batches made ahead are not counted, so
+     * this is where the consumer is, not where the wrapped iterator is
+     */
+    @Override
+    public int cursor() {
+        lock.lock();
+        try {
+            return cursor;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int numExamples() {
+        return base.numExamples();
+    }
+
+    /**
+     * @param preProcessor applied by the producer threads to every batch, so it must be thread-safe
+     */
+    @Override
+    public void setPreProcessor(DataSetPreProcessor preProcessor) {
+        this.preProcessor = preProcessor;
+    }
+
+    @Override
+    public List<String> getLabels() {
+        return base.getLabels();
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+
+    /**
+     * Names producer threads "prefetch-N-M" and makes them daemons, so a forgotten shutdown does not keep
+     * the JVM alive.
+     */
+    private static final class ProducerThreadFactory implements ThreadFactory {
+        private final int instance;
+        private final AtomicInteger count = new AtomicInteger();
+
+        ProducerThreadFactory(int instance) {
+            this.instance = instance;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "prefetch-" + instance + "-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package cs517.data;
+
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Append-only on-disk store for vectorized reviews, used by DataSetManager's streaming mode. Each review's
+ * [sentences x vectorSize] matrix is appended to the current shard file, which rolls over to a new file
+ * once it reaches a size limit. In memory, a review is only represented by its small {@link Entry}.
+ * <p>
+ * Shard record layout (little-endian): rows (int), cols (int), rows x cols floats in row-major order.
+ * <p>
+ * Appends must come from a single thread. Once {@link #flush()} has been called, any number of threads
+ * can read concurrently.
+ */
+class ReviewShardStore {
+
+    /**
+     * Location and shape of one review's matrix.
+     */
+    static final class Entry {
+        final int shard;
+        final long offset;
+        final int rows;
+        final int cols;
+        final int score;
+
+        Entry(int shard, long offset, int rows, int cols, int score) {
+            this.shard = shard;
+            this.offset = offset;
+            this.rows = rows;
+            this.cols = cols;
+            this.score = score;
+        }
+
+        long bytes() {
+            return 8 + 4L * rows * cols;
+        }
+    }
+
+    private static final long DEFAULT_MAX_SHARD_BYTES = 256L << 20;
+    private static final int WRITE_BUFFER_BYTES = 1 << 20;
+
+    private final File dir;
+    private final long maxShardBytes;
+    private final List<FileChannel> shards = new ArrayList<>();
+
+    private final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(WRITE_BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+    private long shardSize;
+    private long bytesWritten;
+
+
+    /**
+     * @param dir directory for the shard files; created if needed. Existing shard files are overwritten.
+     */
+    ReviewShardStore(File dir) throws IOException {
+        this(dir, DEFAULT_MAX_SHARD_BYTES);
+    }
+
+    /**
+     * @param dir           directory for the shard files; created if needed
+     * @param maxShardBytes size after which a new shard file is started
+     */
+    ReviewShardStore(File dir, long maxShardBytes) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create shard directory " + dir);
+        }
+        this.dir = dir;
+        this.maxShardBytes = maxShardBytes;
+        startShard();
+    }
+
+    /**
+     * Appends a review's vectors.
+     *
+     * @param vectors [sentences x vectorSize] matrix
+     * @param score   review score, kept in the entry
+     * @return where the matrix was written
+     */
+    Entry append(INDArray vectors, int score) throws IOException {
+        int rows = vectors.rows();
+        int cols = vectors.columns();
+        long recordBytes = 8 + 4L * rows * cols;
+        if (shardSize > 0 && shardSize + recordBytes > maxShardBytes) {
+            flush();
+            startShard();
+        }
+        Entry entry = new Entry(shards.size() - 1, shardSize, rows, cols, score);
+
+        put(8);
+        writeBuffer.putInt(rows).putInt(cols);
+        for (int r = 0; r < rows; r++) {
+            for (int c = 0; c < cols; c++) {
+                put(4);
+                writeBuffer.putFloat(vectors.getFloat(r, c));
+            }
+        }
+        shardSize += recordBytes;
+        bytesWritten += recordBytes;
+        return entry;
+    }
+
+    /**
+     * Writes buffered records to the current shard. Must be called before reading.
+     */
+    void flush() throws IOException {
+        writeBuffer.flip();
+        FileChannel ch = shards.get(shards.size() - 1);
+        while (writeBuffer.hasRemaining()) {
+            ch.write(writeBuffer);
+        }
+        writeBuffer.clear();
+    }
+
+    /**
+     * Reads one review's vectors back.
+     *
+     * @param entry location returned by append
+     * @return [sentences x vectorSize] matrix
+     */
+    INDArray read(Entry entry) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate((int) entry.bytes()).order(ByteOrder.LITTLE_ENDIAN);
+        FileChannel ch = shards.get(entry.shard);
+        while (buf.hasRemaining()) {
+            if (ch.read(buf, entry.offset + buf.position()) < 0) {
+                throw new EOFException("Shard " + entry.shard + " ends before offset " + entry.offset);
+            }
+        }
+        buf.flip();
+        int rows = buf.getInt();
+        int cols = buf.getInt();
+        float[] data = new float[rows * cols];
+        buf.asFloatBuffer().get(data);
+        return Nd4j.create(data, new int[]{rows, cols});
+    }
+
+    /**
+     * Reads several reviews' vectors, visiting the shards in file order so the disk is read sequentially.
+     *
+     * @param entries locations returned by append
+     * @return matrices, in the order of entries
+     */
+    INDArray[] readAll(final List<Entry> entries) throws IOException {
+        Integer[] order = new Integer[entries.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                Entry x = entries.get(a);
+                Entry y = entries.get(b);
+                if (x.shard != y.shard) {
+                    return x.shard < y.shard ? -1 : 1;
+                }
+                return Long.compare(x.offset, y.offset);
+            }
+        });
+        INDArray[] result = new INDArray[entries.size()];
+        for (Integer i : order) {
+            result[i] = read(entries.get(i));
+        }
+        return result;
+    }
+
+    /**
+     * @return total bytes appended so far
+     */
+    long bytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * @return number of shard files
+     */
+    int shardCount() {
+        return shards.size();
+    }
+
+    /**
+     * Closes every shard file.
+     */
+    void close() throws IOException {
+        for (FileChannel ch : shards) {
+            ch.close();
+        }
+        shards.clear();
+    }
+
+    private void put(int bytes) throws IOException {
+        if (writeBuffer.remaining() < bytes) {
+            flush();
+        }
+    }
+
+    private void startShard() throws IOException {
+        File f = new File(dir, String.format(Locale.ROOT, "reviews-%05d.shard", shards.size()));
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        raf.setLength(0);
+        shards.add(raf.getChannel());
+        shardSize = 0;
+    }
+}
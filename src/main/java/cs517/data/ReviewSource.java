@@ -0,0 +1,39 @@
+package cs517.data;
+
+import java.io.IOException;
+
+/**
+ * Random access to a labeled set of reviews, by index. Implementations are safe to read from several
+ * threads at once.
+ */
+public interface ReviewSource {
+
+    /**
+     * @return number of reviews
+     */
+    int size();
+
+    /**
+     * @param index 0 <= index < size()
+     * @return review ID, e.g. "5814_8"
+     */
+    String id(int index);
+
+    /**
+     * @param index 0 <= index < size()
+     * @return the review's raw text
+     */
+    String text(int index) throws IOException;
+
+    /**
+     * @param index 0 <= index < size()
+     * @return 1 for a positive review, 0 for a negative one, -1 if unlabeled
+     */
+    int polarity(int index);
+
+    /**
+     * @param index 0 <= index < size()
+     * @return the review's score (1-10), or 0 if unknown
+     */
+    int score(int index);
+}
@@ -0,0 +1,234 @@
+package cs517.data;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Seeded, score-stratified splits of the reviews of a DataSetManager, e.g. 60/20/20 holdout sets or the
+ * folds of a k-fold cross-validation. Every score gets the same share of each part (up to rounding, which
+ * is balanced across scores), and the same reviews, split fractions and seed always give the same parts.
+ * <p>
+ * The review IDs are held once, grouped by part, and every part or union of parts is a read-only view of
+ * that one array, so the splits cost no copies of the reviews or of their vectors: all iterators read
+ * from the DataSetManager's store.
+ * <p>
+ * Usage:
+ * <p>
+ * ReviewSplits folds = ReviewSplits.kFold(dm, 5, 42);
+ * for (int f = 0; f < folds.parts(); f++) {
+ *     MultiClassIterator train = folds.iterator(folds.allBut(f), batchSize);
+ *     MultiClassIterator cv = folds.iterator(folds.part(f), batchSize);
+ *     ...
+ * }
+ */
+public final class ReviewSplits {
+
+    private final DataSetManager dm;
+    /** review IDs, grouped by part, shuffled within each part */
+    private final String[] ids;
+    /** part p is ids[partStart[p]] ... ids[partStart[p + 1] - 1] */
+    private final int[] partStart;
+
+
+    private ReviewSplits(DataSetManager dm, String[] ids, int[] partStart) {
+        this.dm = dm;
+        this.ids = ids;
+        this.partStart = partStart;
+    }
+
+    /**
+     * Splits the reviews into k folds of (nearly) equal size and score distribution.
+     *
+     * @param dm   DataSetManager with imported reviews
+     * @param k    number of folds, at least 2
+     * @param seed seed of the shuffles
+     */
+    public static ReviewSplits kFold(DataSetManager dm, int k, long seed) {
+        if (k < 2) {
+            throw new IllegalArgumentException("k-fold needs at least 2 folds, got " + k);
+        }
+        double[] fractions = new double[k];
+        Arrays.fill(fractions, 1.0 / k);
+        return split(dm, fractions, seed);
+    }
+
+    /**
+     * Splits the reviews into holdout sets, e.g. holdout(dm, seed, 0.6, 0.2, 0.2) for train, cv and test.
+     *
+     * @param dm        DataSetManager with imported reviews
+     * @param seed      seed of the shuffles
+     * @param fractions share of the reviews in each part; must add up to 1
+     */
+    public static ReviewSplits holdout(DataSetManager dm, long seed, double... fractions) {
+        double sum = 0;
+        for (double f : fractions) {
+            if (f < 0) {
+                throw new IllegalArgumentException("Negative split fraction " + f);
+            }
+            sum += f;
+        }
+        if (fractions.length == 0 || Math.abs(sum - 1) > 1e-9) {
+            throw new IllegalArgumentException("Split fractions must add up to 1: " + Arrays.toString(fractions));
+        }
+        return split(dm, fractions, seed);
+    }
+
+    /**
+     * Shuffles each score's reviews and deals them out to the parts. A part's quota of a score is rarely a
+     * whole number, so the fraction left over is carried to the next score, and reviews that remain go to
+     * the parts owed the most; that way, rounding does not always favor the same part. A part that got more
+     * than its share carries a negative remainder, which can exceed its quota of a small score: it then gets
+     * none of that score and carries the rest of the surplus on, and if that leaves more reviews dealt than
+     * there are, they are taken back from the parts that are owed the least.
+     */
+    private static ReviewSplits split(DataSetManager dm, double[] fractions, long seed) {
+        Random rng = new Random(seed);
+        int parts = fractions.length;
+        List<List<String>> byPart = new ArrayList<>(parts);
+        for (int p = 0; p < parts; p++) {
+            byPart.add(new ArrayList<String>());
+        }
+        double[] carry = new double[parts];
+
+        // scores in ascending order, and IDs in import order, so the result only depends on the seed
+        for (Map.Entry<Integer, Set<String>> bin : new TreeMap<>(dm.ratingBins).entrySet()) {
+            List<String> binIDs = new ArrayList<>(bin.getValue());
+            Collections.shuffle(binIDs, rng);
+            int m = binIDs.size();
+
+            int[] counts = new int[parts];
+            int dealt = 0;
+            for (int p = 0; p < parts; p++) {
+                double quota = m * fractions[p] + carry[p];
+                counts[p] = Math.max(0, (int) Math.floor(quota));
+                carry[p] = quota - counts[p];
+                dealt += counts[p];
+            }
+            for (; dealt > m; dealt--) {
+                int surplus = -1;
+                for (int p = 0; p < parts; p++) {
+                    if (counts[p] > 0 && (surplus < 0 || carry[p] < carry[surplus])) {
+                        surplus = p;
+                    }
+                }
+                counts[surplus]--;
+                carry[surplus]++;
+            }
+            for (; dealt < m; dealt++) {
+                int owed = 0;
+                for (int p = 1; p < parts; p++) {
+                    if (carry[p] > carry[owed]) {
+                        owed = p;
+                    }
+                }
+                counts[owed]++;
+                carry[owed]--;
+            }
+
+            int from = 0;
+            for (int p = 0; p < parts; p++) {
+                byPart.get(p).addAll(binIDs.subList(from, from + counts[p]));
+                from += counts[p];
+            }
+        }
+
+        String[] ids = new String[dm.revIDs.size()];
+        int[] partStart = new int[parts + 1];
+        int n = 0;
+        for (int p = 0; p < parts; p++) {
+            // mix the scores within the part, so batches are not sorted by score
+            List<String> part = byPart.get(p);
+            Collections.shuffle(part, rng);
+            partStart[p] = n;
+            for (String id : part) {
+                ids[n++] = id;
+            }
+        }
+        partStart[parts] = n;
+        return new ReviewSplits(dm, ids, partStart);
+    }
+
+    /**
+     * @return number of parts (folds, or holdout sets)
+     */
+    public int parts() {
+        return partStart.length - 1;
+    }
+
+    /**
+     * @param p 0 <= p < parts()
+     * @return read-only view of the review IDs of part p
+     */
+    public List<String> part(int p) {
+        return new IdView(partStart[p], partStart[p + 1], 0);
+    }
+
+    /**
+     * @param p 0 <= p < parts()
+     * @return read-only view of the review IDs of every part but p, e.g. the training set of fold p
+     */
+    public List<String> allBut(final int p) {
+        return new IdView(0, ids.length, partStart[p + 1] - partStart[p]) {
+            @Override
+            int position(int index) {
+                return index < partStart[p] ? index : index + skipped;
+            }
+        };
+    }
+
+    /**
+     * @return read-only view of all review IDs, part after part
+     */
+    public List<String> all() {
+        return new IdView(0, ids.length, 0);
+    }
+
+    /**
+     * @param reviewIDs a view returned by part, allBut or all
+     * @param batchSize mini-batch size
+     * @return iterator over the reviews, reading from the DataSetManager the splits were made from
+     */
+    public MultiClassIterator iterator(List<String> reviewIDs, int batchSize) {
+        return new MultiClassIterator(dm, reviewIDs, batchSize);
+    }
+
+
+    /**
+     * The IDs from start to end, less a gap of skipped IDs placed by position.
+     */
+    private class IdView extends AbstractList<String> {
+        final int start;
+        final int end;
+        final int skipped;
+
+        IdView(int start, int end, int skipped) {
+            this.start = start;
+            this.end = end;
+            this.skipped = skipped;
+        }
+
+        int position(int index) {
+            return start + index;
+        }
+
+        @Override
+        public String get(int index) {
+            if (index < 0 || index >= size()) {
+                throw new IndexOutOfBoundsException("Review " + index + " of " + size());
+            }
+            return ids[position(index)];
+        }
+
+        @Override
+        public int size() {
+            return end - start - skipped;
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package cs517.data;
+
+import edu.stanford.nlp.ling.CoreAnnotations.TextAnnotation;
+import edu.stanford.nlp.ling.CoreAnnotations.TokensAnnotation;
+import edu.stanford.nlp.ling.CoreLabel;
+import edu.stanford.nlp.util.CoreMap;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Computes sentence vectors as the mean of the word vectors of a sentence's in-vocabulary tokens.
+ * <p>
+ * Word vectors are added straight from the WordVectorTable into a float accumulator that belongs to the
+ * calling thread, and only the final means are written out, so no matrix is built per sentence. Sentences
+ * can be reduced in batches: the rows of all their tokens are gathered into one int array, with an
+ * offsets array marking where each sentence starts (compressed sparse row layout), i.e. sentence s has
+ * the tokens rows[offsets[s]] ... rows[offsets[s + 1] - 1].
+ * <p>
+ * A sentence without any in-vocabulary token gets a zero vector.
+ * <p>
+ * One embedder can be shared by any number of threads.
+ */
+final class SentenceEmbedder {
+
+    private final WordVectorTable vsm;
+    private final int layerSize;
+    private final IngestMetrics metrics;
+
+    private final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+        @Override
+        protected Scratch initialValue() {
+            return new Scratch(layerSize);
+        }
+    };
+
+    /**
+     * Per-thread working storage, grown as needed and reused from one review to the next.
+     */
+    private static final class Scratch {
+        final float[] acc;
+        int[] rows = new int[1024];
+        int[] offsets = new int[128];
+
+        Scratch(int layerSize) {
+            acc = new float[layerSize];
+        }
+    }
+
+
+    /**
+     * @param vsm lookup table of the vector space model
+     */
+    SentenceEmbedder(WordVectorTable vsm) {
+        this(vsm, IngestMetrics.getDefault());
+    }
+
+    /**
+     * @param vsm     lookup table of the vector space model
+     * @param metrics receives lookup and average latencies, and token/sentence counts
+     */
+    SentenceEmbedder(WordVectorTable vsm, IngestMetrics metrics) {
+        this.vsm = vsm;
+        this.layerSize = vsm.layerSize();
+        this.metrics = metrics;
+    }
+
+    /**
+     * @return metrics this embedder records into
+     */
+    IngestMetrics metrics() {
+        return metrics;
+    }
+
+    /**
+     * @return dimension of the sentence vectors
+     */
+    int layerSize() {
+        return layerSize;
+    }
+
+    /**
+     * Writes the mean of the word vectors of rows[from] ... rows[to - 1] into out.
+     *
+     * @param rows      row ids of a sentence's in-vocabulary tokens
+     * @param from      first token
+     * @param to        one past the last token
+     * @param out       destination
+     * @param outOffset position in out of the first component
+     * @return number of tokens averaged
+     */
+    int embed(int[] rows, int from, int to, float[] out, int outOffset) {
+        float[] acc = scratch.get().acc;
+        Arrays.fill(acc, 0f);
+        for (int t = from; t < to; t++) {
+            vsm.addRow(rows[t], acc, 0);
+        }
+        int count = to - from;
+        if (count == 0) {
+            Arrays.fill(out, outOffset, outOffset + layerSize, 0f);
+        } else {
+            for (int i = 0; i < layerSize; i++) {
+                out[outOffset + i] = acc[i] / count;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Batched gather and reduce: writes the mean vector of each of nSentences sentences into consecutive
+     * rows of out.
+     *
+     * @param rows       row ids of the tokens of all sentences
+     * @param offsets    start of each sentence in rows, plus one entry for the end of the last sentence
+     * @param nSentences number of sentences
+     * @param out        destination, at least nSentences x layerSize floats, row-major
+     */
+    void embedAll(int[] rows, int[] offsets, int nSentences, float[] out) {
+        for (int s = 0; s < nSentences; s++) {
+            embed(rows, offsets[s], offsets[s + 1], out, s * layerSize);
+        }
+    }
+
+    /**
+     * Vectorizes the first maxSentences sentences of a review.
+     *
+     * @param sentences    tokenized sentences, as produced by TokenizationService
+     * @param maxSentences maximum number of sentences kept
+     * @return [min(sentences, maxSentences) x layerSize] matrix, one sentence vector per row
+     */
+    INDArray embedReview(List<CoreMap> sentences, int maxSentences) {
+        Scratch s = scratch.get();
+        int nSentences = Math.min(sentences.size(), maxSentences);
+        if (s.offsets.length < nSentences + 1) {
+            s.offsets = new int[Math.max(nSentences + 1, 2 * s.offsets.length)];
+        }
+
+        // gather: resolve every token to its row, one probe of the vocabulary index each
+        long start = System.nanoTime();
+        int nRows = 0;
+        int nTokens = 0;
+        for (int i = 0; i < nSentences; i++) {
+            s.offsets[i] = nRows;
+            List<CoreLabel> tokens = sentences.get(i).get(TokensAnnotation.class);
+            if (s.rows.length < nRows + tokens.size()) {
+                s.rows = Arrays.copyOf(s.rows, Math.max(nRows + tokens.size(), 2 * s.rows.length));
+            }
+            nTokens += tokens.size();
+            for (CoreLabel token : tokens) {
+                int row = vsm.rowOfLowerCase(token.getString(TextAnnotation.class));
+                if (row >= 0) {
+                    s.rows[nRows++] = row;
+                }
+            }
+        }
+        s.offsets[nSentences] = nRows;
+        long gathered = System.nanoTime();
+
+        // reduce straight into the review's matrix
+        float[] out = new float[nSentences * layerSize];
+        embedAll(s.rows, s.offsets, nSentences, out);
+
+        metrics.record(IngestMetrics.Stage.LOOKUP, gathered - start);
+        metrics.record(IngestMetrics.Stage.AVERAGE, System.nanoTime() - gathered);
+        metrics.countSentences(nSentences, sentences.size() - nSentences, nTokens, nTokens - nRows);
+        return Nd4j.create(out, new int[]{nSentences, layerSize});
+    }
+}
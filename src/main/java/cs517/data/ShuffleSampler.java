@@ -0,0 +1,63 @@
+package cs517.data;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Visits the examples in a new random order every epoch: a seeded permutation of the example indexes, cut
+ * into batches. Only the permutation is allocated; the examples, and the lists of review IDs they come
+ * from, are left alone. Plans only depend on the seed and the epoch, so they are reproducible, and an
+ * iterator can compute the next epoch's plan ahead of time.
+ */
+public class ShuffleSampler implements BatchSampler {
+
+    private final int size;
+    private final int batchSize;
+    private final long seed;
+
+
+    /**
+     * @param size      number of examples
+     * @param batchSize examples per batch; the last batch may be smaller
+     * @param seed      seed of the per-epoch permutations
+     */
+    public ShuffleSampler(int size, int batchSize, long seed) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("batchSize must be positive");
+        }
+        this.size = size;
+        this.batchSize = batchSize;
+        this.seed = seed;
+    }
+
+    @Override
+    public List<int[]> batches(int epoch) {
+        Random rng = epochRandom(seed, epoch);
+        int[] permutation = new int[size];
+        for (int i = 0; i < size; i++) {
+            permutation[i] = i;
+        }
+        for (int i = size - 1; i > 0; i--) {
+            int j = rng.nextInt(i + 1);
+            int t = permutation[i];
+            permutation[i] = permutation[j];
+            permutation[j] = t;
+        }
+
+        List<int[]> batches = new ArrayList<>((size + batchSize - 1) / batchSize);
+        for (int start = 0; start < size; start += batchSize) {
+            batches.add(Arrays.copyOfRange(permutation, start, Math.min(start + batchSize, size)));
+        }
+        return batches;
+    }
+
+    /**
+     * @return the random number generator of one epoch, so that consecutive epochs of one seed do not
+     * overlap with the epochs of nearby seeds
+     */
+    static Random epochRandom(long seed, int epoch) {
+        return new Random(seed + 0x9e3779b97f4a7c15L * (epoch + 1));
+    }
+}
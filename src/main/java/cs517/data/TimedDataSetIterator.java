@@ -0,0 +1,173 @@
+package cs517.data;
+
+import org.deeplearning4j.datasets.iterator.DataSetIterator;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.DataSetPreProcessor;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Wraps a DataSetIterator and measures the time its consumers spend waiting for batches, i.e. in hasNext and
+ * next, along with the number of examples and time steps handed out. Time steps are the unmasked steps of
+ * the features: tokens for SentimentIterator, sentences for MultiClassIterator.
+ * <p>
+ * The iterator may be shared by several consumer threads (e.g. ParallelTrainer's replicas), as long as the
+ * wrapped iterator's rules are followed. Each thread's last batch handout time is kept, so that a
+ * ThroughputListener can tell how long the network took on a batch.
+ */
+public class TimedDataSetIterator implements DataSetIterator {
+
+    private static final long serialVersionUID = 1L;
+
+    private final DataSetIterator base;
+
+    private final AtomicLong waitNanos = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong examples = new AtomicLong();
+    private final AtomicLong timeSteps = new AtomicLong();
+    /** System.nanoTime() when the calling thread last got a batch, or 0 */
+    private final ThreadLocal<long[]> lastBatchNanos = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            return new long[1];
+        }
+    };
+
+
+    /**
+     * @param base iterator to measure
+     */
+    public TimedDataSetIterator(DataSetIterator base) {
+        this.base = base;
+    }
+
+    @Override
+    public boolean hasNext() {
+        long start = System.nanoTime();
+        try {
+            return base.hasNext();
+        } finally {
+            waitNanos.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public DataSet next() {
+        long start = System.nanoTime();
+        DataSet ds = base.next();
+        return count(ds, start);
+    }
+
+    @Override
+    public DataSet next(int num) {
+        long start = System.nanoTime();
+        DataSet ds = base.next(num);
+        return count(ds, start);
+    }
+
+    private DataSet count(DataSet ds, long start) {
+        INDArray features = ds.getFeatureMatrix();
+        INDArray mask = ds.getFeaturesMaskArray();
+        long steps;
+        if (mask != null) {
+            steps = (long) mask.sumNumber().doubleValue();
+        } else {
+            steps = features.rank() == 3 ? (long) features.size(0) * features.size(2) : features.size(0);
+        }
+        batches.incrementAndGet();
+        examples.addAndGet(features.size(0));
+        timeSteps.addAndGet(steps);
+
+        long end = System.nanoTime();
+        waitNanos.addAndGet(end - start);
+        lastBatchNanos.get()[0] = end;
+        return ds;
+    }
+
+    /**
+     * @return total time consumers spent in hasNext and next, in nanoseconds, summed over the threads
+     */
+    public long waitNanos() {
+        return waitNanos.get();
+    }
+
+    /**
+     * @return number of batches handed out
+     */
+    public long batches() {
+        return batches.get();
+    }
+
+    /**
+     * @return number of examples handed out
+     */
+    public long examples() {
+        return examples.get();
+    }
+
+    /**
+     * @return number of unmasked time steps handed out
+     */
+    public long timeSteps() {
+        return timeSteps.get();
+    }
+
+    /**
+     * @return System.nanoTime() when the calling thread last got a batch, or 0 if it never did
+     */
+    public long lastBatchNanos() {
+        return lastBatchNanos.get()[0];
+    }
+
+    @Override
+    public void reset() {
+        base.reset();
+    }
+
+    @Override
+    public int totalExamples() {
+        return base.totalExamples();
+    }
+
+    @Override
+    public int inputColumns() {
+        return base.inputColumns();
+    }
+
+    @Override
+    public int totalOutcomes() {
+        return base.totalOutcomes();
+    }
+
+    @Override
+    public int batch() {
+        return base.batch();
+    }
+
+    @Override
+    public int cursor() {
+        return base.cursor();
+    }
+
+    @Override
+    public int numExamples() {
+        return base.numExamples();
+    }
+
+    @Override
+    public void setPreProcessor(DataSetPreProcessor preProcessor) {
+        base.setPreProcessor(preProcessor);
+    }
+
+    @Override
+    public List<String> getLabels() {
+        return base.getLabels();
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+}
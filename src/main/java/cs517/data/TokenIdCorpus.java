@@ -0,0 +1,260 @@
+package cs517.data;
+
+import org.deeplearning4j.text.tokenization.tokenizer.preprocessor.CommonPreprocessor;
+import org.deeplearning4j.text.tokenization.tokenizerfactory.DefaultTokenizerFactory;
+import org.deeplearning4j.text.tokenization.tokenizerfactory.TokenizerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reviews stored as word vector row ids, so iterating over them only gathers embedding rows: the text has
+ * been tokenized, filtered for out-of-vocabulary words and truncated once, when the corpus was built.
+ * <p>
+ * Row ids are only meaningful for the model the corpus was built with, so the model's fingerprint (see
+ * EmbeddingRegistry.fingerprint) and vocabulary size are stored with the ids.
+ * <p>
+ * File layout (little-endian):
+ *      header      magic (int), version (int), reviews (int), truncateLength (int), vocabulary size (int),
+ *                  fingerprint length (int), fingerprint (UTF-8, padded to a multiple of 4 bytes)
+ *      polarity    one byte per review (1, 0 or -1), padded to a multiple of 4 bytes
+ *      offsets     reviews + 1 ints; review i has the ids tokens[offsets[i]] ... tokens[offsets[i + 1] - 1]
+ *      tokens      int row ids
+ * <p>
+ * Usage:
+ * <p>
+ * TokenIdCorpus.build(reviews, WordVectorTable.of(vsm), registry.fingerprint(vsmFile), 300, idsFile);
+ * TokenIdCorpus ids = TokenIdCorpus.open(idsFile);
+ * new SentimentIterator(ids, reviews, vsm, registry.fingerprint(vsmFile), batchSize);
+ */
+public final class TokenIdCorpus {
+
+    private static final int MAGIC = 0x544b4931;    // "TKI1"
+    private static final int VERSION = 1;
+
+    private final int size;
+    private final int truncateLength;
+    private final int vocabSize;
+    private final String modelFingerprint;
+    private final ByteBuffer polarity;
+    private final IntBuffer offsets;
+    private final IntBuffer tokens;
+
+
+    private TokenIdCorpus(File f, ByteBuffer buf) throws IOException {
+        if (buf.getInt(0) != MAGIC || buf.getInt(4) != VERSION) {
+            throw new IOException(f + " is not a token id corpus");
+        }
+        size = buf.getInt(8);
+        truncateLength = buf.getInt(12);
+        vocabSize = buf.getInt(16);
+        int fpLength = buf.getInt(20);
+        byte[] fp = new byte[fpLength];
+        ByteBuffer dup = buf.duplicate();
+        dup.position(24);
+        dup.get(fp);
+        modelFingerprint = new String(fp, StandardCharsets.UTF_8);
+
+        int pos = 24 + pad4(fpLength);
+        polarity = slice(buf, pos, size);
+        pos += pad4(size);
+        offsets = slice(buf, pos, 4 * (size + 1)).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+        pos += 4 * (size + 1);
+        int nTokens = offsets.get(size);
+        if (pos + 4L * nTokens > buf.capacity()) {
+            throw new IOException(f + " is truncated");
+        }
+        tokens = slice(buf, pos, 4 * nTokens).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+    }
+
+    /**
+     * Memory-maps a token id corpus.
+     *
+     * @param f file written by build
+     */
+    public static TokenIdCorpus open(File f) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(f, "r"); FileChannel ch = raf.getChannel()) {
+            if (ch.size() > Integer.MAX_VALUE) {
+                throw new IOException(f + " is too large to map (" + ch.size() + " bytes)");
+            }
+            return new TokenIdCorpus(f, ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size()).order(ByteOrder.LITTLE_ENDIAN));
+        }
+    }
+
+    /**
+     * Tokenizes every review of a source the same way SentimentIterator does, and stores the row ids of the
+     * first truncateLength in-vocabulary tokens of each.
+     *
+     * @param source           reviews, e.g. a PackedCorpus
+     * @param table            row view of the word vector model
+     * @param modelFingerprint fingerprint of the word vector model, checked by SentimentIterator against the
+     *                         model it is given
+     * @param truncateLength   maximum number of ids kept per review
+     * @param target           output file; overwritten
+     * @return total number of ids stored
+     */
+    public static long build(ReviewSource source, WordVectorTable table, String modelFingerprint, int truncateLength,
+                             File target) throws IOException {
+        TokenizerFactory tokenizerFactory = newTokenizerFactory();
+        int n = source.size();
+        byte[] polarities = new byte[n];
+        int[] offsets = new int[n + 1];
+        int[] ids = new int[Math.max(16, n * 64)];
+        int nIds = 0;
+        for (int i = 0; i < n; i++) {
+            int[] rows = tokenRows(tokenizerFactory, table, source.text(i), truncateLength);
+            if (nIds + rows.length > ids.length) {
+                ids = Arrays.copyOf(ids, Math.max(nIds + rows.length, 2 * ids.length));
+            }
+            System.arraycopy(rows, 0, ids, nIds, rows.length);
+            nIds += rows.length;
+            offsets[i + 1] = nIds;
+            polarities[i] = (byte) source.polarity(i);
+        }
+
+        byte[] fp = modelFingerprint.getBytes(StandardCharsets.UTF_8);
+        long bytes = 24L + pad4(fp.length) + pad4(n) + 4L * (n + 1) + 4L * nIds;
+        if (bytes > Integer.MAX_VALUE) {
+            throw new IOException("Token id corpus would exceed 2GB");
+        }
+        ByteBuffer out = ByteBuffer.allocate((int) bytes).order(ByteOrder.LITTLE_ENDIAN);
+        out.putInt(MAGIC).putInt(VERSION).putInt(n).putInt(truncateLength).putInt(table.index().size())
+                .putInt(fp.length).put(fp);
+        out.position(24 + pad4(fp.length));
+        out.put(polarities);
+        out.position(24 + pad4(fp.length) + pad4(n));
+        out.asIntBuffer().put(offsets);
+        out.position(out.position() + 4 * (n + 1));
+        out.asIntBuffer().put(ids, 0, nIds);
+        out.position(0);
+
+        try (RandomAccessFile raf = new RandomAccessFile(target, "rw"); FileChannel ch = raf.getChannel()) {
+            raf.setLength(0);
+            while (out.hasRemaining()) {
+                ch.write(out);
+            }
+        }
+        return nIds;
+    }
+
+    /**
+     * The tokenization used by SentimentIterator: DefaultTokenizerFactory with a CommonPreprocessor.
+     */
+    public static TokenizerFactory newTokenizerFactory() {
+        TokenizerFactory tokenizerFactory = new DefaultTokenizerFactory();
+        tokenizerFactory.setTokenPreProcessor(new CommonPreprocessor());
+        return tokenizerFactory;
+    }
+
+    /**
+     * Tokenizes text and resolves each known word to its row in the word vector table. Unknown words are
+     * dropped; one probe of the vocabulary index per token.
+     *
+     * @param tokenizerFactory tokenizer, see newTokenizerFactory
+     * @param table            row view of the word vector model
+     * @param text             review text
+     * @param limit            maximum number of rows returned
+     * @return rows of the first limit known words of text
+     */
+    public static int[] tokenRows(TokenizerFactory tokenizerFactory, WordVectorTable table, String text, int limit) {
+        List<String> words = tokenizerFactory.create(text).getTokens();
+        int[] rows = new int[Math.min(words.size(), limit)];
+        int n = 0;
+        for (String t : words) {
+            if (n == rows.length) {
+                break;
+            }
+            int row = table.rowOf(t);
+            if (row >= 0) {
+                rows[n++] = row;
+            }
+        }
+        return n == rows.length ? rows : Arrays.copyOf(rows, n);
+    }
+
+    /**
+     * @return number of reviews
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return maximum number of ids kept per review
+     */
+    public int truncateLength() {
+        return truncateLength;
+    }
+
+    /**
+     * @return vocabulary size of the model the corpus was built with
+     */
+    public int vocabSize() {
+        return vocabSize;
+    }
+
+    /**
+     * @return fingerprint of the model the corpus was built with
+     */
+    public String modelFingerprint() {
+        return modelFingerprint;
+    }
+
+    /**
+     * @param index 0 <= index < size()
+     * @return 1 for a positive review, 0 for a negative one, -1 if unlabeled
+     */
+    public int polarity(int index) {
+        return polarity.get(index);
+    }
+
+    /**
+     * @param index 0 <= index < size()
+     * @return number of ids of the review
+     */
+    public int length(int index) {
+        return offsets.get(index + 1) - offsets.get(index);
+    }
+
+    /**
+     * @return number of ids of every review, e.g. for a LengthBucketSampler
+     */
+    public int[] lengths() {
+        int[] lengths = new int[size];
+        for (int i = 0; i < size; i++) {
+            lengths[i] = length(i);
+        }
+        return lengths;
+    }
+
+    /**
+     * @param index 0 <= index < size()
+     * @return word vector row ids of the review
+     */
+    public int[] rows(int index) {
+        int start = offsets.get(index);
+        int[] rows = new int[offsets.get(index + 1) - start];
+        for (int i = 0; i < rows.length; i++) {
+            rows[i] = tokens.get(start + i);
+        }
+        return rows;
+    }
+
+    private static int pad4(int n) {
+        return (n + 3) & ~3;
+    }
+
+    private static ByteBuffer slice(ByteBuffer buf, int pos, int length) {
+        ByteBuffer dup = buf.duplicate();
+        dup.limit(pos + length).position(pos);
+        return dup.slice();
+    }
+}
@@ -0,0 +1,124 @@
+package cs517.data;
+
+import edu.stanford.nlp.ling.CoreAnnotations.SentencesAnnotation;
+import edu.stanford.nlp.pipeline.Annotation;
+import edu.stanford.nlp.pipeline.StanfordCoreNLP;
+import edu.stanford.nlp.util.CoreMap;
+
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Shared tokenization and sentence-splitting service. Building a StanfordCoreNLP pipeline is much more
+ * expensive than annotating a single review, so pipelines are built once per thread and then reused for
+ * every review that thread handles. One TokenizationService can safely be shared by any number of threads.
+ *
+ * Usage:
+ * <p>
+ * TokenizationService tokenizer = new TokenizationService();
+ * DataSetManager dm = new DataSetManager(tokenizer);
+ * dm.importData(dataFile);
+ * System.out.println(tokenizer.stats());
+ */
+public class TokenizationService {
+
+    private static final String ANNOTATORS = "tokenize, ssplit";
+
+    private final Properties props;
+    private final ThreadLocal<StanfordCoreNLP> pipelines;
+
+    private final AtomicLong pipelinesCreated = new AtomicLong();
+    private final AtomicLong startupNanos = new AtomicLong();
+    private final AtomicLong reviewsAnnotated = new AtomicLong();
+    private final AtomicLong annotateNanos = new AtomicLong();
+    private final AtomicLong maxAnnotateNanos = new AtomicLong();
+
+
+    /**
+     * Creates the service and eagerly builds the pipeline for the calling thread, so that the startup
+     * cost is paid (and reported) up front instead of on the first review.
+     */
+    public TokenizationService() {
+        props = new Properties();
+        props.put("annotators", ANNOTATORS);
+        pipelines = new ThreadLocal<StanfordCoreNLP>() {
+            @Override
+            protected StanfordCoreNLP initialValue() {
+                long start = System.nanoTime();
+                StanfordCoreNLP pipeline = new StanfordCoreNLP(props);
+                startupNanos.addAndGet(System.nanoTime() - start);
+                pipelinesCreated.incrementAndGet();
+                return pipeline;
+            }
+        };
+        pipelines.get();
+    }
+
+    /**
+     * Tokenizes and sentence-splits text with this thread's pipeline.
+     *
+     * @param text raw review text
+     * @return the sentences of text, each carrying its TokensAnnotation
+     */
+    public List<CoreMap> sentences(String text) {
+        StanfordCoreNLP pipeline = pipelines.get();
+        long start = System.nanoTime();
+        Annotation annotation = new Annotation(text);
+        pipeline.annotate(annotation);
+        long elapsed = System.nanoTime() - start;
+
+        reviewsAnnotated.incrementAndGet();
+        annotateNanos.addAndGet(elapsed);
+        long max = maxAnnotateNanos.get();
+        while (elapsed > max && !maxAnnotateNanos.compareAndSet(max, elapsed)) {
+            max = maxAnnotateNanos.get();
+        }
+        return annotation.get(SentencesAnnotation.class);
+    }
+
+    /**
+     * @return number of pipelines built so far (one per thread that has used this service)
+     */
+    public long pipelinesCreated() {
+        return pipelinesCreated.get();
+    }
+
+    /**
+     * @return total time spent building pipelines, in milliseconds
+     */
+    public double startupMillis() {
+        return startupNanos.get() / 1e6;
+    }
+
+    /**
+     * @return number of reviews annotated so far
+     */
+    public long reviewsAnnotated() {
+        return reviewsAnnotated.get();
+    }
+
+    /**
+     * @return mean annotation latency per review, in milliseconds
+     */
+    public double meanAnnotateMillis() {
+        long n = reviewsAnnotated.get();
+        return n == 0 ? 0.0 : annotateNanos.get() / 1e6 / n;
+    }
+
+    /**
+     * @return worst annotation latency seen for a single review, in milliseconds
+     */
+    public double maxAnnotateMillis() {
+        return maxAnnotateNanos.get() / 1e6;
+    }
+
+    /**
+     * @return one-line summary of startup time and per-review annotation latency
+     */
+    public String stats() {
+        return String.format("TokenizationService: %d pipeline(s) built in %.1f ms; %d reviews annotated, " +
+                        "mean %.3f ms/review, max %.3f ms",
+                pipelinesCreated(), startupMillis(), reviewsAnnotated(), meanAnnotateMillis(), maxAnnotateMillis());
+    }
+}
@@ -0,0 +1,284 @@
+package cs517.data;
+
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Persistent cache of vectorized reviews, so a warm restart can skip tokenization and sentence averaging
+ * for every review whose text and embedding model have not changed.
+ * <p>
+ * There is one cache file per (embedding model fingerprint, maxSentences) pair, so changing either simply
+ * starts a new file. Within a file, entries are keyed by review ID and checked against a hash of the
+ * review text, so an edited review is re-vectorized. Only an index of the entries (ID, text hash and file
+ * offset) is kept in memory; vectors are read from the file on every get, so the cache does not hold every
+ * review's vectors on the heap, e.g. in DataSetManager's streaming mode. New entries are appended as they
+ * are produced.
+ * <p>
+ * File layout (little-endian):
+ *      header  magic (int), version (int), maxSentences (int), fingerprint length (int), fingerprint
+ *      entries id length (int), id (UTF-8), text hash (long), rows (int), cols (int), rows x cols floats
+ * A truncated last entry (e.g. from a run that was killed while writing) is ignored and overwritten, and a
+ * file written by a different VERSION is rebuilt from scratch.
+ * <p>
+ * get(), put() and flush() may be called from any thread.
+ */
+class VectorizedReviewCache {
+
+    private static final int MAGIC = 0x56524331;    // "VRC1"
+    /** bumped whenever the way reviews are vectorized changes, which invalidates existing caches */
+    private static final int VERSION = 2;
+
+    private final File file;
+    private final String modelFingerprint;
+    private final int maxSentences;
+    private final Map<String, Cached> entries = new ConcurrentHashMap<>();
+
+    private final FileChannel channel;
+    private final ByteBuffer writeBuffer = ByteBuffer.allocate(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+    /** file offset of the next entry put, i.e. the end of the file plus what is in writeBuffer */
+    private long end;
+    /** offset up to which the file has been written; get flushes first if it needs more */
+    private volatile long flushedEnd;
+    private int loaded;
+    private int appended;
+
+
+    /**
+     * Index entry: where the vectors of a review are in the file.
+     */
+    private static final class Cached {
+        final long textHash;
+        final long offset;      // of the first float
+        final int rows;
+        final int cols;
+
+        Cached(long textHash, long offset, int rows, int cols) {
+            this.textHash = textHash;
+            this.offset = offset;
+            this.rows = rows;
+            this.cols = cols;
+        }
+
+        long end() {
+            return offset + 4L * rows * cols;
+        }
+    }
+
+    /**
+     * Opens (or creates) the cache file for a model and sentence limit, and indexes every entry in it.
+     *
+     * @param dir              cache directory; created if needed
+     * @param modelFingerprint fingerprint of the embedding model (see EmbeddingRegistry.fingerprint)
+     * @param maxSentences     sentence limit the reviews were vectorized with
+     */
+    VectorizedReviewCache(File dir, String modelFingerprint, int maxSentences) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create cache directory " + dir);
+        }
+        this.modelFingerprint = modelFingerprint;
+        this.maxSentences = maxSentences;
+        this.file = new File(dir, String.format(Locale.ROOT, "reviews-%s-s%d.vcache",
+                modelFingerprint.substring(0, Math.min(16, modelFingerprint.length())), maxSentences));
+
+        channel = new RandomAccessFile(file, "rw").getChannel();
+        long validEnd = load();
+        channel.truncate(validEnd);
+        channel.position(validEnd);
+        end = validEnd;
+        flushedEnd = validEnd;
+    }
+
+    /**
+     * Reads the header (writing one if the file is new) and indexes all complete entries.
+     *
+     * @return offset just past the last complete entry
+     */
+    private long load() throws IOException {
+        byte[] fingerprint = modelFingerprint.getBytes(StandardCharsets.UTF_8);
+        if (channel.size() > 0 && !hasCompatibleHeader(fingerprint)) {
+            System.out.println("VectorizedReviewCache: " + file + " is out of date, rebuilding it");
+            channel.truncate(0);
+        }
+        if (channel.size() == 0) {
+            ByteBuffer header = ByteBuffer.allocate(16 + fingerprint.length).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC).putInt(VERSION).putInt(maxSentences).putInt(fingerprint.length).put(fingerprint);
+            header.flip();
+            channel.write(header, 0);
+            return header.capacity();
+        }
+
+        MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        in.order(ByteOrder.LITTLE_ENDIAN);
+        in.position(16 + fingerprint.length);
+
+        long validEnd = in.position();
+        byte[] idBytes = new byte[64];
+        try {
+            while (in.hasRemaining()) {
+                int idLength = in.getInt();
+                if (idLength > idBytes.length) {
+                    idBytes = new byte[idLength];
+                }
+                in.get(idBytes, 0, idLength);
+                long textHash = in.getLong();
+                int rows = in.getInt();
+                int cols = in.getInt();
+                Cached cached = new Cached(textHash, in.position(), rows, cols);
+                if (rows < 0 || cols < 0 || cached.end() > in.limit()) {
+                    throw new BufferUnderflowException();
+                }
+                in.position((int) cached.end());
+
+                String id = new String(idBytes, 0, idLength, StandardCharsets.UTF_8);
+                entries.put(id, cached);
+                loaded++;
+                validEnd = in.position();
+            }
+        } catch (BufferUnderflowException | IllegalArgumentException | IndexOutOfBoundsException e) {
+            System.out.println("VectorizedReviewCache: ignoring truncated entry at end of " + file);
+        }
+        return validEnd;
+    }
+
+    /**
+     * @return true if the file starts with a header for this format version, model and maxSentences
+     */
+    private boolean hasCompatibleHeader(byte[] fingerprint) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(16 + fingerprint.length).order(ByteOrder.LITTLE_ENDIAN);
+        while (header.hasRemaining()) {
+            if (channel.read(header, header.position()) < 0) {
+                return false;
+            }
+        }
+        header.flip();
+        if (header.getInt() != MAGIC || header.getInt() != VERSION || header.getInt() != maxSentences
+                || header.getInt() != fingerprint.length) {
+            return false;
+        }
+        byte[] stored = new byte[fingerprint.length];
+        header.get(stored);
+        return Arrays.equals(stored, fingerprint);
+    }
+
+    /**
+     * Reads the vectors of a review from the cache file.
+     *
+     * @param id       review ID
+     * @param textHash hash of the review text, from {@link #textHash(String)}
+     * @return the cached vectors, or null if there is no entry for this ID and text
+     */
+    INDArray get(String id, long textHash) throws IOException {
+        Cached cached = entries.get(id);
+        if (cached == null || cached.textHash != textHash) {
+            return null;
+        }
+        if (cached.end() > flushedEnd) {
+            flush();
+        }
+        ByteBuffer bytes = ByteBuffer.allocate(4 * cached.rows * cached.cols).order(ByteOrder.LITTLE_ENDIAN);
+        while (bytes.hasRemaining()) {
+            if (channel.read(bytes, cached.offset + bytes.position()) < 0) {
+                throw new IOException("Unexpected end of " + file);
+            }
+        }
+        bytes.flip();
+        float[] data = new float[cached.rows * cached.cols];
+        bytes.asFloatBuffer().get(data);
+        return Nd4j.create(data, new int[]{cached.rows, cached.cols});
+    }
+
+    /**
+     * Adds an entry (buffered; call flush to make sure it is on disk). Only its position is kept in memory.
+     *
+     * @param id       review ID
+     * @param textHash hash of the review text
+     * @param vectors  [sentences x vectorSize] matrix
+     */
+    synchronized void put(String id, long textHash, INDArray vectors) throws IOException {
+        byte[] idBytes = id.getBytes(StandardCharsets.UTF_8);
+        int rows = vectors.rows();
+        int cols = vectors.columns();
+        ensure(4 + idBytes.length + 16);
+        writeBuffer.putInt(idBytes.length).put(idBytes).putLong(textHash).putInt(rows).putInt(cols);
+        end += 4 + idBytes.length + 16;
+        Cached cached = new Cached(textHash, end, rows, cols);
+        for (int r = 0; r < rows; r++) {
+            for (int c = 0; c < cols; c++) {
+                ensure(4);
+                writeBuffer.putFloat(vectors.getFloat(r, c));
+            }
+        }
+        end = cached.end();
+        entries.put(id, cached);
+        appended++;
+    }
+
+    /**
+     * Writes buffered entries to the cache file.
+     */
+    synchronized void flush() throws IOException {
+        writeBuffer.flip();
+        while (writeBuffer.hasRemaining()) {
+            channel.write(writeBuffer);
+        }
+        writeBuffer.clear();
+        flushedEnd = end;
+    }
+
+    /**
+     * Flushes and closes the cache file.
+     */
+    void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * @return true if this cache was opened for the given model and sentence limit
+     */
+    boolean matches(String modelFingerprint, int maxSentences) {
+        return this.modelFingerprint.equals(modelFingerprint) && this.maxSentences == maxSentences;
+    }
+
+    /**
+     * @return one-line summary of the cache contents
+     */
+    String stats() {
+        return String.format("VectorizedReviewCache: %d entries indexed in %s, %d added", loaded, file, appended);
+    }
+
+    /**
+     * 64-bit FNV-1a hash of a review's text.
+     */
+    static long textHash(String text) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < text.length(); i++) {
+            h ^= text.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+
+    private void ensure(int bytes) throws IOException {
+        if (writeBuffer.remaining() < bytes) {
+            flush();
+        }
+    }
+}
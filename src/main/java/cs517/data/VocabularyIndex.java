@@ -0,0 +1,184 @@
+package cs517.data;
+
+import java.util.Arrays;
+
+/**
+ * Maps words to int row ids with a single open-addressing (linear probing) table of primitives. All words
+ * are packed into one char[], so the index holds no per-word objects, and lookups take any CharSequence
+ * (or a range of one) so callers don't have to build a String, or a lower-cased copy of one, per token.
+ * <p>
+ * The index is immutable once built and can be shared by any number of threads.
+ */
+public final class VocabularyIndex {
+
+    private static final int EMPTY = -1;
+
+    /** slot -> row id, or EMPTY */
+    private final int[] slots;
+    /** slot -> full hash of the word in that slot, to skip most string compares */
+    private final int[] slotHashes;
+    private final int mask;
+
+    /** row -> [offsets[row], offsets[row + 1]) range of chars */
+    private final int[] offsets;
+    private final char[] chars;
+
+
+    private VocabularyIndex(int[] slots, int[] slotHashes, int[] offsets, char[] chars) {
+        this.slots = slots;
+        this.slotHashes = slotHashes;
+        this.mask = slots.length - 1;
+        this.offsets = offsets;
+        this.chars = chars;
+    }
+
+    /**
+     * Builds an index in which words[i] has row id i. Null entries leave a gap (that row id is never
+     * returned); for duplicate words, the first occurrence wins.
+     *
+     * @param words words, by row id
+     * @return the index
+     */
+    public static VocabularyIndex build(String[] words) {
+        int totalChars = 0;
+        int count = 0;
+        for (String word : words) {
+            if (word != null) {
+                totalChars += word.length();
+                count++;
+            }
+        }
+
+        char[] chars = new char[totalChars];
+        int[] offsets = new int[words.length + 1];
+        int pos = 0;
+        for (int row = 0; row < words.length; row++) {
+            offsets[row] = pos;
+            if (words[row] != null) {
+                words[row].getChars(0, words[row].length(), chars, pos);
+                pos += words[row].length();
+            }
+        }
+        offsets[words.length] = pos;
+
+        // keep the load factor at or below 1/2 so probe sequences stay short
+        int capacity = Integer.highestOneBit(Math.max(2, count) * 2 - 1) << 1;
+        int[] slots = new int[capacity];
+        int[] slotHashes = new int[capacity];
+        Arrays.fill(slots, EMPTY);
+
+        VocabularyIndex index = new VocabularyIndex(slots, slotHashes, offsets, chars);
+        for (int row = 0; row < words.length; row++) {
+            if (words[row] != null) {
+                index.insert(row, words[row]);
+            }
+        }
+        return index;
+    }
+
+    private void insert(int row, String word) {
+        int h = hash(word, 0, word.length(), false);
+        int slot = h & mask;
+        while (slots[slot] != EMPTY) {
+            if (slotHashes[slot] == h && matches(slots[slot], word, 0, word.length(), false)) {
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        slots[slot] = row;
+        slotHashes[slot] = h;
+    }
+
+    /**
+     * @param word token
+     * @return row id of word, or -1 if it is not in the vocabulary
+     */
+    public int lookup(CharSequence word) {
+        return lookup(word, 0, word.length(), false);
+    }
+
+    /**
+     * Looks up word as if it had been lower-cased first (char by char), without making the copy.
+     *
+     * @param word token, in any case
+     * @return row id of the lower-case form of word, or -1 if it is not in the vocabulary
+     */
+    public int lookupLowerCase(CharSequence word) {
+        return lookup(word, 0, word.length(), true);
+    }
+
+    /**
+     * Looks up the word s[start, end).
+     *
+     * @param s         text containing the token
+     * @param start     index of the first char of the token
+     * @param end       index after the last char of the token
+     * @param lowerCase if true, the token is lower-cased char by char before matching
+     * @return row id, or -1 if the token is not in the vocabulary
+     */
+    public int lookup(CharSequence s, int start, int end, boolean lowerCase) {
+        int h = hash(s, start, end, lowerCase);
+        int slot = h & mask;
+        int row;
+        while ((row = slots[slot]) != EMPTY) {
+            if (slotHashes[slot] == h && matches(row, s, start, end, lowerCase)) {
+                return row;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * @return number of row ids (including any gaps)
+     */
+    public int size() {
+        return offsets.length - 1;
+    }
+
+    /**
+     * @param row row id
+     * @return the word with that row id, or null for a gap
+     */
+    public String word(int row) {
+        int start = offsets[row];
+        int end = offsets[row + 1];
+        if (start == end && lookup("") != row) {
+            return null;
+        }
+        return new String(chars, start, end - start);
+    }
+
+    private boolean matches(int row, CharSequence s, int start, int end, boolean lowerCase) {
+        int from = offsets[row];
+        int len = offsets[row + 1] - from;
+        if (len != end - start) {
+            return false;
+        }
+        for (int i = 0; i < len; i++) {
+            char c = s.charAt(start + i);
+            if (lowerCase) {
+                c = Character.toLowerCase(c);
+            }
+            if (chars[from + i] != c) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int hash(CharSequence s, int start, int end, boolean lowerCase) {
+        int h = 0;
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            h = 31 * h + (lowerCase ? Character.toLowerCase(c) : c);
+        }
+        // murmur3 finalizer: spreads the bits so that masking by the table size works well
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+}
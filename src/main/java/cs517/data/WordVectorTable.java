@@ -0,0 +1,161 @@
+package cs517.data;
+
+import org.deeplearning4j.models.embeddings.wordvectors.WordVectors;
+import org.nd4j.linalg.api.buffer.DataBuffer;
+import org.nd4j.linalg.api.ndarray.INDArray;
+
+import java.util.Collection;
+
+/**
+ * Row-oriented view of a word vector model for the vectorization hot paths: a token is resolved to an
+ * int row id with one probe of a {@link VocabularyIndex}, and vector components are read by row id
+ * straight from the model's weight matrix (or mapped file), so no INDArray is created per token.
+ * <p>
+ * Tables are cached by the EmbeddingRegistry for the models it has loaded, so use {@link #of(WordVectors)}
+ * rather than building one per use.
+ */
+public final class WordVectorTable {
+
+    private final VocabularyIndex index;
+    private final int layerSize;
+
+    /** set when the model is a MappedWordVectors */
+    private final MappedWordVectors mapped;
+
+    /** otherwise, the model's syn0 weights and how to address them */
+    private final DataBuffer weights;
+    private final long weightsOffset;
+    private final int rowStride;
+    private final int colStride;
+
+
+    private WordVectorTable(MappedWordVectors mapped) {
+        this.mapped = mapped;
+        this.index = mapped.vocabularyIndex();
+        this.layerSize = mapped.layerSize();
+        this.weights = null;
+        this.weightsOffset = 0;
+        this.rowStride = 0;
+        this.colStride = 0;
+    }
+
+    private WordVectorTable(WordVectors vsm) {
+        this.mapped = null;
+        INDArray syn0 = vsm.lookupTable().getWeights();
+        this.layerSize = vsm.lookupTable().layerSize();
+        this.weights = syn0.data();
+        this.weightsOffset = syn0.offset();
+        this.rowStride = syn0.stride(0);
+        this.colStride = syn0.stride(1);
+
+        // WordVectors.vocab() is a raw VocabCache, but its words are always strings
+        @SuppressWarnings("unchecked")
+        Collection<String> vocabWords = vsm.vocab().words();
+        String[] words = new String[syn0.rows()];
+        for (String word : vocabWords) {
+            int row = vsm.indexOf(word);
+            if (row >= 0 && row < words.length) {
+                words[row] = word;
+            }
+        }
+        this.index = VocabularyIndex.build(words);
+    }
+
+    /**
+     * Returns the table for vsm, from the EmbeddingRegistry's cache when vsm was loaded through it.
+     *
+     * @param vsm word vector model
+     * @return row view of vsm
+     */
+    public static WordVectorTable of(WordVectors vsm) {
+        return EmbeddingRegistry.getDefault().table(vsm);
+    }
+
+    /**
+     * Builds a new table for vsm, without caching it.
+     */
+    static WordVectorTable build(WordVectors vsm) {
+        if (vsm instanceof MappedWordVectors) {
+            return new WordVectorTable((MappedWordVectors) vsm);
+        }
+        return new WordVectorTable(vsm);
+    }
+
+    /**
+     * @return dimension of the word vectors
+     */
+    public int layerSize() {
+        return layerSize;
+    }
+
+    /**
+     * @return the underlying vocabulary index
+     */
+    public VocabularyIndex index() {
+        return index;
+    }
+
+    /**
+     * @param token token exactly as stored in the vocabulary
+     * @return row id of token, or -1 if it is out of vocabulary
+     */
+    public int rowOf(CharSequence token) {
+        return index.lookup(token);
+    }
+
+    /**
+     * @param token token in any case; it is lower-cased on the fly
+     * @return row id of the lower-case form of token, or -1 if it is out of vocabulary
+     */
+    public int rowOfLowerCase(CharSequence token) {
+        return index.lookupLowerCase(token);
+    }
+
+    /**
+     * @param row row id returned by rowOf
+     * @param col component, 0 <= col < layerSize
+     * @return one component of the word vector
+     */
+    public float get(int row, int col) {
+        if (mapped != null) {
+            return mapped.get(row, col);
+        }
+        return weights.getFloat(weightsOffset + (long) row * rowStride + (long) col * colStride);
+    }
+
+    /**
+     * Copies a word vector into dest.
+     *
+     * @param row    row id returned by rowOf
+     * @param dest   destination array
+     * @param offset position in dest of the first component
+     */
+    public void copyRow(int row, float[] dest, int offset) {
+        if (mapped != null) {
+            mapped.copyRow(row, dest, offset);
+            return;
+        }
+        long base = weightsOffset + (long) row * rowStride;
+        for (int i = 0; i < layerSize; i++) {
+            dest[offset + i] = weights.getFloat(base + (long) i * colStride);
+        }
+    }
+
+    /**
+     * Adds a word vector to acc, component by component.
+     *
+     * @param row    row id returned by rowOf
+     * @param acc    accumulator
+     * @param offset position in acc of the first component
+     */
+    public void addRow(int row, float[] acc, int offset) {
+        if (mapped != null) {
+            mapped.addRow(row, acc, offset);
+            return;
+        }
+        long base = weightsOffset + (long) row * rowStride;
+        for (int i = 0; i < layerSize; i++) {
+            acc[offset + i] += weights.getFloat(base + (long) i * colStride);
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package cs517;
+
+import cs517.data.EmbeddingRegistry;
+import cs517.data.ReviewSource;
+import cs517.data.TokenIdCorpus;
+import cs517.data.WordVectorTable;
+import org.deeplearning4j.models.embeddings.wordvectors.WordVectors;
+import org.deeplearning4j.nn.conf.NeuralNetConfiguration;
+import org.deeplearning4j.nn.conf.Updater;
+import org.deeplearning4j.nn.conf.layers.GravesLSTM;
+import org.deeplearning4j.nn.conf.layers.RnnOutputLayer;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.deeplearning4j.nn.weights.WeightInit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.lossfunctions.LossFunctions;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The index path (row id features and an EmbeddingInput layer) against the dense path (word vector
+ * features), on small random word vectors and reviews.
+ */
+public class EmbeddingInputTest {
+
+    private static final String[] WORDS = {
+            "good", "bad", "great", "awful", "plot", "actor", "scene", "movie", "film", "boring",
+            "funny", "sad", "long", "short", "music", "story", "ending", "camera", "script", "cast"
+    };
+    private static final int VECTOR_SIZE = 8;
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private WordVectors vsm;
+    private WordVectorTable table;
+    private ReviewSource reviews;
+    private String fingerprint;
+    private TokenIdCorpus tokenIds;
+
+    @Before
+    public void setUp() throws IOException {
+        Random rng = new Random(3);
+        File vectors = tmp.newFile("vectors.txt");
+        try (PrintWriter out = new PrintWriter(vectors, "UTF-8")) {
+            for (String word : WORDS) {
+                StringBuilder line = new StringBuilder(word);
+                for (int c = 0; c < VECTOR_SIZE; c++) {
+                    line.append(' ').append(rng.nextFloat() * 2 - 1);
+                }
+                out.println(line);
+            }
+        }
+        fingerprint = EmbeddingRegistry.getDefault().fingerprint(vectors);
+        vsm = EmbeddingRegistry.getDefault().acquire(vectors);
+        table = WordVectorTable.of(vsm);
+
+        final String[] texts = new String[12];
+        for (int i = 0; i < texts.length; i++) {
+            StringBuilder text = new StringBuilder();
+            for (int w = 0, n = 3 + rng.nextInt(10); w < n; w++) {
+                text.append(WORDS[rng.nextInt(WORDS.length)]).append(' ');
+            }
+            texts[i] = text.toString().trim();
+        }
+        reviews = new ReviewSource() {
+            @Override
+            public int size() {
+                return texts.length;
+            }
+
+            @Override
+            public String id(int index) {
+                return index + "_" + score(index);
+            }
+
+            @Override
+            public String text(int index) {
+                return texts[index];
+            }
+
+            @Override
+            public int polarity(int index) {
+                return index % 2;
+            }
+
+            @Override
+            public int score(int index) {
+                return index % 2 == 0 ? 2 : 9;
+            }
+        };
+        File ids = tmp.newFile("reviews.ids");
+        TokenIdCorpus.build(reviews, table, fingerprint, 10, ids);
+        tokenIds = TokenIdCorpus.open(ids);
+    }
+
+    @After
+    public void tearDown() {
+        EmbeddingRegistry.getDefault().release(vsm);
+    }
+
+    private static NeuralNetConfiguration.ListBuilder layers() {
+        return new NeuralNetConfiguration.Builder()
+                .seed(12345).iterations(1)
+                .updater(Updater.RMSPROP).learningRate(0.01)
+                .weightInit(WeightInit.XAVIER)
+                .list();
+    }
+
+    private static GravesLSTM lstm() {
+        return new GravesLSTM.Builder().nIn(VECTOR_SIZE).nOut(6).activation("softsign").build();
+    }
+
+    private static RnnOutputLayer output() {
+        return new RnnOutputLayer.Builder().activation("softmax")
+                .lossFunction(LossFunctions.LossFunction.MCXENT).nIn(6).nOut(2).build();
+    }
+
+    private MultiLayerNetwork indexNet() {
+        NeuralNetConfiguration.ListBuilder layers = layers();
+        layers.layer(0, EmbeddingInput.layer(table)).layer(1, lstm()).layer(2, output());
+        MultiLayerNetwork net = new MultiLayerNetwork(
+                EmbeddingInput.addPreProcessors(layers.pretrain(false).backprop(true), 0).build());
+        net.init();
+        EmbeddingInput.seed(net, 0, table);
+        return net;
+    }
+
+    @Test
+    public void indexPathMatchesDensePath() {
+        MultiLayerNetwork dense = new MultiLayerNetwork(
+                layers().layer(0, lstm()).layer(1, output()).pretrain(false).backprop(true).build());
+        dense.init();
+        MultiLayerNetwork index = indexNet();
+        index.getLayer(1).setParams(dense.getLayer(0).params().dup());
+        index.getLayer(2).setParams(dense.getLayer(1).params().dup());
+
+        SentimentIterator vectors = new SentimentIterator(tokenIds, reviews, vsm, fingerprint, 5);
+        SentimentIterator rowIds = new SentimentIterator(tokenIds, reviews, vsm, fingerprint, 5);
+        rowIds.setIndexFeatures(true);
+        int batches = 0;
+        while (vectors.hasNext()) {
+            DataSet d = vectors.next();
+            DataSet x = rowIds.next();
+            assertEquals(1, x.getFeatureMatrix().size(1));
+            INDArray expected = dense.output(d.getFeatureMatrix(), false, d.getFeaturesMaskArray(), d.getLabelsMaskArray());
+            INDArray actual = index.output(x.getFeatureMatrix(), false, x.getFeaturesMaskArray(), x.getLabelsMaskArray());
+            INDArray mask = d.getLabelsMaskArray();
+            for (int i = 0; i < mask.rows(); i++) {
+                for (int t = 0; t < mask.columns(); t++) {
+                    if (mask.getDouble(i, t) == 0) {
+                        continue;
+                    }
+                    for (int c = 0; c < 2; c++) {
+                        assertEquals(expected.getDouble(i, c, t), actual.getDouble(i, c, t), 1e-6);
+                    }
+                }
+            }
+            batches++;
+        }
+        assertEquals(3, batches);
+    }
+
+    @Test
+    public void embeddingStaysFrozen() {
+        MultiLayerNetwork index = indexNet();
+        INDArray embedding = index.getLayer(0).getParam("W").dup();
+        INDArray lstm = index.getLayer(1).params().dup();
+
+        SentimentIterator rowIds = new SentimentIterator(tokenIds, reviews, vsm, fingerprint, 5);
+        rowIds.setIndexFeatures(true);
+        index.fit(rowIds);
+
+        assertEquals(embedding, index.getLayer(0).getParam("W"));
+        assertTrue(index.getLayer(1).params().distance2(lstm) > 0);
+    }
+}
@@ -0,0 +1,83 @@
+package cs517.data;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Splits over score bins too small for every part to get a review of each score.
+ */
+public class ReviewSplitsTest {
+
+    private static final int[] SCORES = {1, 2, 3, 4, 7, 8, 9, 10};
+
+    /** @return a DataSetManager with binSizes[i] reviews of the i-th score, and no vectors */
+    private static DataSetManager reviews(int... binSizes) {
+        DataSetManager dm = new DataSetManager();
+        for (int b = 0; b < binSizes.length; b++) {
+            Set<String> bin = new LinkedHashSet<>();
+            for (int i = 0; i < binSizes[b]; i++) {
+                String id = i + "_" + SCORES[b];
+                bin.add(id);
+                dm.revIDs.add(id);
+            }
+            dm.ratingBins.put(SCORES[b], bin);
+        }
+        return dm;
+    }
+
+    /** Checks that every review is in exactly one part, and that each part is less than one review off its share */
+    private static void assertPartition(DataSetManager dm, ReviewSplits splits, double... fractions) {
+        int n = dm.revIDs.size();
+        Set<String> seen = new HashSet<>();
+        for (int p = 0; p < splits.parts(); p++) {
+            List<String> part = splits.part(p);
+            assertTrue("part " + p + " has " + part.size() + " of " + n + " reviews, share " + fractions[p],
+                    Math.abs(part.size() - n * fractions[p]) < 1 + 1e-9);
+            for (String id : part) {
+                assertTrue(id + " is in two parts", seen.add(id));
+            }
+        }
+        assertEquals(dm.revIDs, seen);
+    }
+
+    @Test
+    public void holdoutOverTinyBins() {
+        DataSetManager dm = reviews(4, 4, 3, 5, 1, 1, 4, 1);
+        for (long seed = 0; seed < 50; seed++) {
+            assertPartition(dm, ReviewSplits.holdout(dm, seed, 0.6, 0.2, 0.2), 0.6, 0.2, 0.2);
+        }
+    }
+
+    @Test
+    public void kFoldOverTinyBins() {
+        int[][] binSizes = {{4, 4, 3, 5, 1, 1, 4, 1}, {1, 1, 1, 1, 1, 1, 1, 1}, {2, 1, 3, 1, 2, 1, 3, 1}, {0, 1, 0, 2}};
+        for (int[] sizes : binSizes) {
+            DataSetManager dm = reviews(sizes);
+            for (int k : new int[]{2, 5, 10}) {
+                double[] fractions = new double[k];
+                Arrays.fill(fractions, 1.0 / k);
+                for (long seed = 0; seed < 20; seed++) {
+                    ReviewSplits folds = ReviewSplits.kFold(dm, k, seed);
+                    assertPartition(dm, folds, fractions);
+                    for (int f = 0; f < k; f++) {
+                        assertEquals(dm.revIDs.size(), folds.part(f).size() + folds.allBut(f).size());
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void sameSeedSameSplits() {
+        DataSetManager dm = reviews(4, 4, 3, 5, 1, 1, 4, 1);
+        assertEquals(ReviewSplits.kFold(dm, 5, 42).all(), ReviewSplits.kFold(dm, 5, 42).all());
+    }
+}